@@ -1,6 +1,7 @@
 package com.sampullman.ble;
 
 import android.annotation.TargetApi;
+import android.app.Notification;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -19,6 +20,8 @@ import com.sampullman.ble.operation.CharacteristicRequest;
 import com.sampullman.ble.operation.ConnectOperation;
 import com.sampullman.ble.operation.LeOperation;
 import com.sampullman.ble.operation.RequestMtuOperation;
+import com.sampullman.ble.record.NotificationBuffer;
+import com.sampullman.ble.record.NotificationRecorder;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -40,6 +43,23 @@ public class BluetoothLeService extends Service {
 
     private BluetoothAdapter bluetoothAdapter;
     private final ArrayList<LeOperation> operationQueue = new ArrayList<>();
+    private final ConnectionParameterManager parameterManager = new ConnectionParameterManager(this);
+    private volatile NotificationBatcher notificationBatcher;
+    private volatile NotificationRecorder notificationRecorder;
+    private NotificationListener notificationListener;
+    private int notificationQueueCapacity = NotificationQueue.DEFAULT_CAPACITY;
+    private int notificationDropPolicy = NotificationQueue.DROP_OLDEST;
+    private long notificationBlockTimeoutMs = 0;
+    private GattServer gattServer;
+
+    public static final long DEFAULT_BACKGROUND_DRAIN_INTERVAL_MS = 2000;
+    public static final long DEFAULT_BACKGROUND_BUFFER_BYTES = 8 * 1024 * 1024;
+
+    // Foreground streaming mode. Changed on the main thread
+    private volatile boolean streaming = false;
+    private final List<LeConnection> streamingConnections = new ArrayList<>();
+    private final NotificationBuffer backgroundBuffer = new NotificationBuffer(DEFAULT_BACKGROUND_BUFFER_BYTES);
+    private long backgroundDrainIntervalMs = DEFAULT_BACKGROUND_DRAIN_INTERVAL_MS;
 
     public final static String ACTION_GATT_CONNECTED = "com.sampullman.bluetooth.le.ACTION_GATT_CONNECTED";
     public final static String ACTION_GATT_DISCONNECTED = "com.sampullman.bluetooth.le.ACTION_GATT_DISCONNECTED";
@@ -53,6 +73,24 @@ public class BluetoothLeService extends Service {
     // unique identifier that tells what type of data
     public final static String EXTRA_UUID = "com.sampullman.bluetooth.le.EXTRA_UUID";
     public final static String EXTRA_STATUS = "com.sampullman.bluetooth.le.EXTRA_STATUS";
+    // SystemClock.elapsedRealtimeNanos when the notification reached the GATT callback
+    public final static String EXTRA_TIMESTAMP = "com.sampullman.bluetooth.le.EXTRA_TIMESTAMP";
+
+    /**
+     * Receives notifications drained from each connection's NotificationQueue, on the main thread.
+     * The timestamp is SystemClock.elapsedRealtimeNanos taken on entry to the GATT callback.
+     * If no listener is set, notifications are broadcast with ACTION_GATT_NOTIFY
+     */
+    public interface NotificationListener {
+        void characteristicNotification(LeConnection connection, String uuid, byte[] data, long timestamp);
+
+        /**
+         * @param handle The characteristic's handle in connection.getUuidTable(), or UuidTable.NO_HANDLE
+         */
+        default void characteristicNotification(LeConnection connection, int handle, String uuid, byte[] data, long timestamp) {
+            characteristicNotification(connection, uuid, data, timestamp);
+        }
+    }
 
     class LocalBinder extends Binder {
         public BluetoothLeService getService() {
@@ -69,7 +107,15 @@ public class BluetoothLeService extends Service {
     public boolean onUnbind(Intent intent) {
         // After using a given device, we must ensure that BluetoothGatt.close() is called
         // so that resources are cleaned up properly.
-        return super.onUnbind(intent);
+        super.onUnbind(intent);
+        // Rebinding to a streaming service goes through onRebind
+        return true;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Connections don't survive the process, so there is nothing to restart
+        return START_NOT_STICKY;
     }
 
     private final IBinder mBinder = new LocalBinder();
@@ -102,10 +148,255 @@ public class BluetoothLeService extends Service {
             Timber.w("Device not found. Unable to connect.");
             return false;
         }
+        connection.connectQueued();
         queueOperation(new ConnectOperation(connection));
         return true;
     }
 
+    /**
+     * Keeps the service, its connections and their subscriptions alive after clients unbind,
+     * as a foreground service showing the given notification. While no client is attached,
+     * notifications are delivered in bursts every backgroundDrainIntervalMs into a bounded,
+     * compressed buffer instead of being broadcast, and connection priority is evaluated less
+     * often, to limit wakeups during long captures. The buffer is drained with
+     * drainBackgroundBuffer when a client rebinds; if it fills, the oldest notifications are
+     * dropped. Each connection's NotificationQueue must hold an interval's worth of packets
+     *
+     * @param connections Connections for a client that rebinds to adopt
+     */
+    public void startStreaming(int notificationId, Notification notification, List<LeConnection> connections) {
+        if(!streaming) {
+            // A started service outlives its bindings
+            startService(new Intent(this, BluetoothLeService.class));
+        }
+        startForeground(notificationId, notification);
+        streaming = true;
+        streamingConnections.clear();
+        streamingConnections.addAll(connections);
+        updateBackground();
+        Timber.d("Streaming %d connections in the foreground", connections.size());
+    }
+
+    /**
+     * Leaves foreground streaming mode. The service stops once no clients are bound.
+     * Buffered notifications are kept until drained
+     */
+    public void stopStreaming() {
+        if(!streaming) {
+            return;
+        }
+        streaming = false;
+        streamingConnections.clear();
+        updateBackground();
+        stopForeground(true);
+        stopSelf();
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return Connections handed over by startStreaming
+     */
+    public List<LeConnection> getStreamingConnections() {
+        return new ArrayList<>(streamingConnections);
+    }
+
+    /**
+     * @param intervalMs Time notifications collect in the connection queues before being
+     *                   moved to the background buffer
+     */
+    public void setBackgroundDrainIntervalMs(long intervalMs) {
+        this.backgroundDrainIntervalMs = intervalMs;
+    }
+
+    /**
+     * Notifications buffered while streaming without a client, for size and drop counts
+     */
+    public NotificationBuffer getBackgroundBuffer() {
+        return backgroundBuffer;
+    }
+
+    /**
+     * Delivers and removes everything buffered while no client was attached, oldest first
+     *
+     * @return The number of notifications delivered
+     */
+    public int drainBackgroundBuffer(NotificationBuffer.Listener listener) {
+        return backgroundBuffer.drain(listener);
+    }
+
+    private boolean isBackground() {
+        return streaming && notificationListener == null;
+    }
+
+    private void updateBackground() {
+        parameterManager.setBackground(isBackground());
+    }
+
+    /**
+     * Hosts services for centrals to connect to, replacing any server already started.
+     * Outgoing notification queues are configured like those of client connections
+     *
+     * @return The server, or null if it couldn't be opened
+     */
+    public GattServer startGattServer(List<ServerService> services, GattServer.Listener listener) {
+        stopGattServer();
+        GattServer server = new GattServer(this, services, listener);
+        if(!server.open()) {
+            return null;
+        }
+        gattServer = server;
+        return server;
+    }
+
+    public void stopGattServer() {
+        if(gattServer != null) {
+            gattServer.close();
+            gattServer = null;
+        }
+    }
+
+    public GattServer getGattServer() {
+        return gattServer;
+    }
+
+    /**
+     * Routes notifications through a batcher instead of broadcasting each packet.
+     *
+     * @param batcher The batcher to use, or null to return to per-packet broadcasts
+     */
+    public void setNotificationBatcher(NotificationBatcher batcher) {
+        NotificationBatcher old = notificationBatcher;
+        notificationBatcher = batcher;
+        if(old != null) {
+            old.flush();
+        }
+    }
+
+    /**
+     * Persists every notification in addition to normal delivery
+     *
+     * @param recorder The recorder to write to, or null to stop recording. The previous recorder is closed
+     */
+    public void setNotificationRecorder(NotificationRecorder recorder) {
+        NotificationRecorder old = notificationRecorder;
+        notificationRecorder = recorder;
+        if(old != null && old != recorder) {
+            old.close();
+        }
+    }
+
+    /**
+     * Setting null while streaming moves delivery to the background buffer
+     */
+    public void setNotificationListener(NotificationListener listener) {
+        this.notificationListener = listener;
+        updateBackground();
+    }
+
+    /**
+     * Configures the notification queue of connections created after this call
+     *
+     * @param capacity Maximum buffered notifications per connection
+     * @param dropPolicy NotificationQueue.DROP_OLDEST, DROP_NEWEST or BLOCK
+     * @param blockTimeoutMs Longest the GATT callback thread may block under the BLOCK policy
+     */
+    public void setNotificationQueuePolicy(int capacity, int dropPolicy, long blockTimeoutMs) {
+        this.notificationQueueCapacity = capacity;
+        this.notificationDropPolicy = dropPolicy;
+        this.notificationBlockTimeoutMs = blockTimeoutMs;
+    }
+
+    NotificationQueue createNotificationQueue() {
+        return new NotificationQueue(notificationQueueCapacity, notificationDropPolicy,
+                notificationBlockTimeoutMs);
+    }
+
+    void postDrain(Runnable drainTask) {
+        if(isBackground()) {
+            // Let packets collect in the queue so the app wakes once per interval
+            operationHandler.postDelayed(drainTask, backgroundDrainIntervalMs);
+        } else {
+            operationHandler.post(drainTask);
+        }
+    }
+
+    /**
+     * Delivers everything queued for a connection. Runs on the main thread
+     */
+    void drainNotifications(LeConnection connection) {
+        NotificationQueue queue = connection.getNotificationQueue();
+        NotificationQueue.Entry entry = new NotificationQueue.Entry();
+        NotificationBatcher batcher = notificationBatcher;
+        NotificationRecorder recorder = notificationRecorder;
+        String address = connection.getDevice().getAddress();
+        queue.drainStarted();
+
+        // The consumer is falling behind, so hand over partial batches instead of holding them
+        boolean backpressure = queue.size() > queue.capacity() / 2;
+
+        boolean background = isBackground();
+
+        while(queue.poll(entry)) {
+            connection.publishNotification(entry.uuid, entry.data, entry.timestamp);
+            if(recorder != null) {
+                recorder.record(address, entry.uuid, entry.timestamp, entry.data);
+            }
+
+            if(background) {
+                backgroundBuffer.add(address, entry.uuid, entry.timestamp, entry.data);
+            } else if(batcher != null) {
+                batcher.add(connection.getDevice(), entry.uuid, entry.data, entry.timestamp);
+            } else if(notificationListener != null) {
+                notificationListener.characteristicNotification(connection, entry.handle, entry.uuid, entry.data, entry.timestamp);
+            } else {
+                Intent intent = new Intent(ACTION_GATT_NOTIFY);
+                intent.putExtra(ACTION_GATT_NOTIFY, connection.getDevice());
+                intent.putExtra(EXTRA_DATA, entry.data);
+                intent.putExtra(EXTRA_UUID, entry.uuid);
+                intent.putExtra(EXTRA_STATUS, BluetoothGatt.GATT_SUCCESS);
+                intent.putExtra(EXTRA_TIMESTAMP, entry.timestamp);
+                sendBroadcast(intent);
+            }
+        }
+        if(backpressure && batcher != null) {
+            batcher.flushDevice(connection.getDevice());
+        }
+    }
+
+    /**
+     * Delivers everything queued for a connection, including partial batches.
+     * Called from the GATT callback thread when the connection drops
+     */
+    void flushNotifications(final LeConnection connection) {
+        operationHandler.post(() -> {
+            drainNotifications(connection);
+            NotificationBatcher batcher = notificationBatcher;
+            if(batcher != null) {
+                batcher.removeDevice(connection.getDevice());
+            }
+        });
+    }
+
+    /**
+     * @return BluetoothDevice.PHY_LE_*_MASK bits supported by the local adapter
+     */
+    @TargetApi(26)
+    public int getSupportedPhyMask() {
+        int mask = BluetoothDevice.PHY_LE_1M_MASK;
+        if(bluetoothAdapter != null && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
+            if(bluetoothAdapter.isLe2MPhySupported()) {
+                mask |= BluetoothDevice.PHY_LE_2M_MASK;
+            }
+            if(bluetoothAdapter.isLeCodedPhySupported()) {
+                mask |= BluetoothDevice.PHY_LE_CODED_MASK;
+            }
+        }
+        return mask;
+    }
+
     public List<BluetoothDevice> getConnectedDevices() {
         BluetoothManager bluetoothManager = (BluetoothManager)getSystemService(Context.BLUETOOTH_SERVICE);
         if(bluetoothManager != null) {
@@ -125,26 +416,76 @@ public class BluetoothLeService extends Service {
     }
 
     public void queueOperation(LeOperation operation) {
-        operationQueue.add(operation);
-        if(operationQueue.size() == 1) {
-            operation.execute(this);
+        boolean first;
+        synchronized(operationQueue) {
+            operationQueue.add(operation);
+            first = operationQueue.size() == 1;
+        }
+        if(first && !operation.execute(this)) {
+            Timber.d("FAILED TO SEND LE");
+            operationComplete();
+        }
+        if(operation.getGatt() != null) {
+            parameterManager.operationQueued(operation.getGatt());
         }
     }
 
-    void operationComplete() {
-        if(operationQueue.size() > 0) {
-            operationQueue.remove(0);
-        } else {
-            Timber.d("Unqueued characteristic sent");
+    /**
+     * Removes the operation at the head of the queue and starts the next one
+     */
+    public void operationComplete() {
+        LeOperation next = null;
+        synchronized(operationQueue) {
+            if(operationQueue.size() > 0) {
+                operationQueue.remove(0);
+            } else {
+                Timber.d("Unqueued characteristic sent");
+            }
+            // Try to send the next characteristic, if one is queued
+            if(operationQueue.size() > 0) {
+                next = operationQueue.get(0);
+            }
+        }
+        if(next != null) {
+            executeOperation(next);
         }
-        // Try to send the next characteristic, if one is queued
-        if(operationQueue.size() > 0) {
-            executeOperation(operationQueue.get(0));
+    }
+
+    /**
+     * @return The operation in progress, or null if the queue is empty
+     */
+    public LeOperation currentOperation() {
+        synchronized(operationQueue) {
+            return operationQueue.isEmpty() ? null : operationQueue.get(0);
         }
     }
 
     void clearOperations() {
-        operationQueue.clear();
+        synchronized(operationQueue) {
+            operationQueue.clear();
+        }
+    }
+
+    /**
+     * @return Number of queued operations targeting a connection, including the one in progress
+     */
+    public int getQueueDepth(BluetoothGatt gatt) {
+        if(gatt == null) {
+            return 0;
+        }
+        int depth = 0;
+        synchronized(operationQueue) {
+            for(LeOperation operation : operationQueue) {
+                if(operation.getGatt() == gatt) {
+                    depth += 1;
+                }
+            }
+        }
+        return depth;
+    }
+
+    public ConnectionParameterManager getConnectionParameterManager() {
+        return parameterManager;
     }
 
     public void readCharacteristic(BluetoothGatt gatt, UUID serviceUuid, UUID characteristic) {
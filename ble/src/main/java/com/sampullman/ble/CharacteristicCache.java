@@ -0,0 +1,207 @@
+package com.sampullman.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Last known value of each characteristic on a connection, kept up to date by reads,
+ * notifications and completed writes.
+ * Each characteristic has a maximum age (defaultMaxAgeMs unless set with setMaxAge); older
+ * values are treated as missing. The cache holds at most maxEntries values, evicting the
+ * least recently used.
+ */
+public class CharacteristicCache {
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+    // A read-through that isn't answered in time fails, e.g. when the read never started
+    private static final long READ_TIMEOUT_MS = 5000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LeConnection connection;
+    private final int maxEntries;
+    private final LinkedHashMap<String, CachedValue> entries;
+    private final Map<String, Long> maxAges = new HashMap<>();
+    private final Map<String, List<Callback>> pendingReads = new HashMap<>();
+    private final Map<String, Runnable> readTimeouts = new HashMap<>();
+    private long defaultMaxAgeMs = Long.MAX_VALUE;
+
+    public interface Callback {
+        /**
+         * Called on the main thread, or synchronously for cached values
+         *
+         * @param data The value, or null if the read failed
+         * @param cached True if the value came from the cache without a radio round-trip
+         */
+        void characteristicRead(UUID uuid, byte[] data, boolean cached);
+    }
+
+    private static class CachedValue {
+        final byte[] value;
+        final long updatedMs;
+
+        CachedValue(byte[] value, long updatedMs) {
+            this.value = value;
+            this.updatedMs = updatedMs;
+        }
+    }
+
+    CharacteristicCache(LeConnection connection) {
+        this(connection, DEFAULT_MAX_ENTRIES);
+    }
+
+    CharacteristicCache(LeConnection connection, final int maxEntries) {
+        this.connection = connection;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+                return size() > CharacteristicCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param maxAgeMs Age after which values are stale, for characteristics without their own policy
+     */
+    public synchronized void setDefaultMaxAge(long maxAgeMs) {
+        this.defaultMaxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * @param maxAgeMs Age after which the characteristic's value is stale. 0 disables caching it
+     */
+    public synchronized void setMaxAge(UUID uuid, long maxAgeMs) {
+        maxAges.put(uuid.toString(), maxAgeMs);
+    }
+
+    /**
+     * @return The cached value if it is within the characteristic's maximum age, or null
+     */
+    public byte[] get(UUID uuid) {
+        return get(uuid, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return The cached value if it is no older than maxAgeMs and within the characteristic's
+     *         maximum age, or null
+     */
+    public synchronized byte[] get(UUID uuid, long maxAgeMs) {
+        String key = uuid.toString();
+        CachedValue entry = entries.get(key);
+        if(entry == null) {
+            return null;
+        }
+        long age = SystemClock.elapsedRealtime() - entry.updatedMs;
+        if(age > Math.min(maxAgeMs, maxAgeOf(key))) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Returns the cached value if it is no older than maxAgeMs, otherwise reads it.
+     * Concurrent read-throughs of the same characteristic share a single read
+     */
+    public void read(UUID serviceUuid, UUID uuid, long maxAgeMs, Callback callback) {
+        byte[] value = get(uuid, maxAgeMs);
+        if(value != null) {
+            callback.characteristicRead(uuid, value, true);
+            return;
+        }
+        final String key = uuid.toString();
+        boolean issue;
+        synchronized(this) {
+            List<Callback> callbacks = pendingReads.get(key);
+            issue = callbacks == null;
+            if(issue) {
+                callbacks = new ArrayList<>();
+                pendingReads.put(key, callbacks);
+                Runnable timeout = () -> {
+                    Timber.w("Read-through of %s timed out", key);
+                    readComplete(key, null, false);
+                };
+                readTimeouts.put(key, timeout);
+                handler.postDelayed(timeout, READ_TIMEOUT_MS);
+            }
+            callbacks.add(callback);
+        }
+        if(issue) {
+            connection.readCharacteristic(serviceUuid, uuid);
+        }
+    }
+
+    public synchronized void invalidate(UUID uuid) {
+        entries.remove(uuid.toString());
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Updates the cached value. Called from the GATT callback thread
+     */
+    void update(String uuid, byte[] value) {
+        if(value == null) {
+            return;
+        }
+        synchronized(this) {
+            if(maxAgeOf(uuid) > 0) {
+                entries.put(uuid, new CachedValue(value, SystemClock.elapsedRealtime()));
+            }
+        }
+    }
+
+    /**
+     * Completes pending read-throughs. Called from the GATT callback thread
+     */
+    void readComplete(final String uuid, final byte[] value, boolean success) {
+        if(success) {
+            update(uuid, value);
+        }
+        final List<Callback> callbacks;
+        synchronized(this) {
+            callbacks = pendingReads.remove(uuid);
+            Runnable timeout = readTimeouts.remove(uuid);
+            if(timeout != null) {
+                handler.removeCallbacks(timeout);
+            }
+        }
+        if(callbacks != null) {
+            final UUID parsed = UUID.fromString(uuid);
+            final byte[] result = success ? value : null;
+            handler.post(() -> {
+                for(Callback callback : callbacks) {
+                    callback.characteristicRead(parsed, result, false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Fails pending read-throughs when the connection drops
+     */
+    void connectionLost() {
+        List<String> pending;
+        synchronized(this) {
+            pending = new ArrayList<>(pendingReads.keySet());
+        }
+        for(String uuid : pending) {
+            readComplete(uuid, null, false);
+        }
+    }
+
+    private long maxAgeOf(String uuid) {
+        Long maxAge = maxAges.get(uuid);
+        return (maxAge == null) ? defaultMaxAgeMs : maxAge;
+    }
+}
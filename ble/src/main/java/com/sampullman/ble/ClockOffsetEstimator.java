@@ -0,0 +1,184 @@
+package com.sampullman.ble;
+
+/**
+ * Maps a device-side sequence counter carried in notifications to host time.
+ * Each notification contributes a (sequence, host timestamp) point. The packet period is a
+ * least-squares fit over a sliding window, and the offset follows the lower envelope of the
+ * points: the packets that reached the callback with the least delay. Since stack and
+ * scheduling delays only ever add time, this removes most of the per-packet jitter, giving a
+ * common host timebase for merging streams from several devices.
+ */
+public class ClockOffsetEstimator {
+    public static final int DEFAULT_WINDOW = 256;
+
+    private final SequenceExtractor extractor;
+    private final long counterRange;
+    private final int window;
+
+    // Points relative to the first sample, to keep doubles precise
+    private final double[] seqs;
+    private final double[] times;
+    private int count = 0, next = 0;
+    private double sumS, sumT, sumSS, sumST;
+    private boolean started = false;
+    private long baseSeq, baseTime;
+    private long lastRawSeq, unwrapped;
+    private boolean dirty = true;
+    private double period, offset;
+
+    /**
+     * Reads the device's sequence counter from a notification payload
+     */
+    public interface SequenceExtractor {
+        long getSequence(byte[] data);
+    }
+
+    /**
+     * Extracts an unsigned little-endian counter of 1 to 8 bytes at a fixed offset
+     */
+    public static class LittleEndianCounter implements SequenceExtractor {
+        private final int offset, size;
+
+        public LittleEndianCounter(int offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public long getSequence(byte[] data) {
+            long value = 0;
+            for(int i = size - 1; i >= 0; i--) {
+                value = (value << 8) | (data[offset + i] & 0xFF);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * @param counterBits Width of the device counter, used to unwrap rollovers. 64 for no wrapping
+     */
+    public ClockOffsetEstimator(SequenceExtractor extractor, int counterBits) {
+        this(extractor, counterBits, DEFAULT_WINDOW);
+    }
+
+    public ClockOffsetEstimator(SequenceExtractor extractor, int counterBits, int window) {
+        this.extractor = extractor;
+        this.counterRange = (counterBits >= 64) ? 0 : 1L << counterBits;
+        this.window = window;
+        this.seqs = new double[window];
+        this.times = new double[window];
+    }
+
+    /**
+     * Adds a notification. Called from the GATT callback thread
+     *
+     * @param timestamp Host time the notification arrived, SystemClock.elapsedRealtimeNanos
+     */
+    public synchronized void add(byte[] data, long timestamp) {
+        long raw;
+        try {
+            raw = extractor.getSequence(data);
+        } catch(IndexOutOfBoundsException e) {
+            return;
+        }
+        long seq = unwrap(raw);
+        if(!started) {
+            started = true;
+            baseSeq = seq;
+            baseTime = timestamp;
+        }
+        double s = seq - baseSeq;
+        double t = timestamp - baseTime;
+        if(count == window) {
+            double oldS = seqs[next], oldT = times[next];
+            sumS -= oldS;
+            sumT -= oldT;
+            sumSS -= oldS * oldS;
+            sumST -= oldS * oldT;
+        } else {
+            count += 1;
+        }
+        seqs[next] = s;
+        times[next] = t;
+        next = (next + 1) % window;
+        sumS += s;
+        sumT += t;
+        sumSS += s * s;
+        sumST += s * t;
+        dirty = true;
+    }
+
+    /**
+     * @return True once enough packets have been seen to estimate a period
+     */
+    public synchronized boolean isReady() {
+        return count >= 2;
+    }
+
+    /**
+     * @return Estimated time between consecutive sequence numbers in nanoseconds
+     */
+    public synchronized double getPeriodNanos() {
+        estimate();
+        return period;
+    }
+
+    /**
+     * @return Host time, SystemClock.elapsedRealtimeNanos, at which the device produced a sequence number
+     */
+    public synchronized long toHostTime(long sequence) {
+        estimate();
+        double s = sequence - baseSeq;
+        return baseTime + (long)(offset + period * s);
+    }
+
+    /**
+     * @return Host time at which the device produced a notification, from its sequence counter
+     */
+    public synchronized long toHostTime(byte[] data) {
+        return toHostTime(unwrapNearest(extractor.getSequence(data)));
+    }
+
+    private long unwrap(long raw) {
+        if(counterRange == 0 || !started) {
+            lastRawSeq = raw;
+            unwrapped = raw;
+            return raw;
+        }
+        long delta = (raw - lastRawSeq) & (counterRange - 1);
+        // Treat large forward jumps as reordering or a reset, not as nearly a full wrap
+        if(delta > counterRange / 2) {
+            delta -= counterRange;
+        }
+        lastRawSeq = raw;
+        unwrapped += delta;
+        return unwrapped;
+    }
+
+    // Unwraps a counter value relative to the latest packet without updating state
+    private long unwrapNearest(long raw) {
+        if(counterRange == 0 || !started) {
+            return raw;
+        }
+        long delta = (raw - lastRawSeq) & (counterRange - 1);
+        if(delta > counterRange / 2) {
+            delta -= counterRange;
+        }
+        return unwrapped + delta;
+    }
+
+    private void estimate() {
+        if(!dirty) {
+            return;
+        }
+        dirty = false;
+        double denominator = count * sumSS - sumS * sumS;
+        period = (count < 2 || denominator == 0) ? 0 : (count * sumST - sumS * sumT) / denominator;
+
+        double lowest = Double.MAX_VALUE;
+        for(int i = 0; i < count; i++) {
+            lowest = Math.min(lowest, times[i] - period * seqs[i]);
+        }
+        offset = (count == 0) ? 0 : lowest;
+    }
+}
@@ -0,0 +1,224 @@
+package com.sampullman.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic counters and connection parameter history for a single connection.
+ * Counters are updated from the GATT callback thread and may be read from any thread.
+ */
+public class ConnectionMetrics {
+    private final AtomicLong notificationCount = new AtomicLong();
+    private final AtomicLong notificationBytes = new AtomicLong();
+    private final AtomicLong readCount = new AtomicLong();
+    private final AtomicLong readBytes = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong writeBytes = new AtomicLong();
+    private final AtomicLong channelReadBytes = new AtomicLong();
+    private final AtomicLong channelWriteBytes = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+
+    // Indexed by BluetoothGatt.CONNECTION_PRIORITY_BALANCED, _HIGH and _LOW_POWER
+    private final long[] priorityDurationMs = new long[3];
+    // -1 while disconnected
+    private int priority = -1;
+    private long priorityChangedMs = SystemClock.elapsedRealtime();
+
+    // Indexed by BluetoothDevice.PHY_LE_1M, _2M and _CODED. Bytes moved and time spent on each PHY
+    private final long[] phyBytes = new long[4];
+    private final long[] phyDurationMs = new long[4];
+    // 0 while disconnected or unknown
+    private int phy = 0;
+    private long phyChangedMs = SystemClock.elapsedRealtime();
+
+    void notificationReceived(int bytes) {
+        notificationCount.incrementAndGet();
+        notificationBytes.addAndGet(bytes);
+        phyTransfer(bytes);
+    }
+
+    void characteristicRead(int bytes) {
+        readCount.incrementAndGet();
+        readBytes.addAndGet(bytes);
+        phyTransfer(bytes);
+    }
+
+    void characteristicWritten(int bytes) {
+        writeCount.incrementAndGet();
+        writeBytes.addAndGet(bytes);
+        phyTransfer(bytes);
+    }
+
+    void channelRead(int bytes) {
+        channelReadBytes.addAndGet(bytes);
+        phyTransfer(bytes);
+    }
+
+    void channelWritten(int bytes) {
+        channelWriteBytes.addAndGet(bytes);
+        phyTransfer(bytes);
+    }
+
+    void notificationSent(int bytes) {
+        sentCount.incrementAndGet();
+        sentBytes.addAndGet(bytes);
+        phyTransfer(bytes);
+    }
+
+    void notificationFailed() {
+        sendFailures.incrementAndGet();
+    }
+
+    private synchronized void phyTransfer(int bytes) {
+        phyBytes[phy] += bytes;
+    }
+
+    /**
+     * @param newPhy The receive PHY, BluetoothDevice.PHY_LE_*, or 0 when disconnected
+     */
+    synchronized void phyChanged(int newPhy) {
+        long now = SystemClock.elapsedRealtime();
+        phyDurationMs[phy] += now - phyChangedMs;
+        phy = newPhy;
+        phyChangedMs = now;
+    }
+
+    synchronized void priorityChanged(int newPriority) {
+        long now = SystemClock.elapsedRealtime();
+        if(priority != -1) {
+            priorityDurationMs[priority] += now - priorityChangedMs;
+        }
+        priority = newPriority;
+        priorityChangedMs = now;
+    }
+
+    public long getNotificationCount() {
+        return notificationCount.get();
+    }
+
+    public long getNotificationBytes() {
+        return notificationBytes.get();
+    }
+
+    public long getReadCount() {
+        return readCount.get();
+    }
+
+    public long getReadBytes() {
+        return readBytes.get();
+    }
+
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    public long getWriteBytes() {
+        return writeBytes.get();
+    }
+
+    /**
+     * @return Bytes received over an L2CAP channel. Traffic of a channel that fell back to GATT
+     *         is counted as notifications
+     */
+    public long getChannelReadBytes() {
+        return channelReadBytes.get();
+    }
+
+    /**
+     * @return Bytes sent over an L2CAP channel. Traffic of a channel that fell back to GATT
+     *         is counted as writes
+     */
+    public long getChannelWriteBytes() {
+        return channelWriteBytes.get();
+    }
+
+    /**
+     * @return Notifications and indications sent by the GATT server, counted when the stack reports them sent
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * @return Notifications and indications the GATT server failed to send
+     */
+    public long getSendFailureCount() {
+        return sendFailures.get();
+    }
+
+    /**
+     * @return The last requested BluetoothGatt.CONNECTION_PRIORITY_*, or -1 if disconnected
+     */
+    public synchronized int getConnectionPriority() {
+        return priority;
+    }
+
+    /**
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_BALANCED, _HIGH or _LOW_POWER
+     * @return Total time spent at the given priority, including the current period
+     */
+    public synchronized long getTimeInPriorityMs(int priority) {
+        long duration = priorityDurationMs[priority];
+        if(priority == this.priority) {
+            duration += SystemClock.elapsedRealtime() - priorityChangedMs;
+        }
+        return duration;
+    }
+
+    /**
+     * @return The current receive PHY, BluetoothDevice.PHY_LE_*, or 0 if unknown
+     */
+    public synchronized int getPhy() {
+        return phy;
+    }
+
+    public synchronized long getTimeOnPhyMs(int phy) {
+        long duration = phyDurationMs[phy];
+        if(phy == this.phy) {
+            duration += SystemClock.elapsedRealtime() - phyChangedMs;
+        }
+        return duration;
+    }
+
+    public synchronized long getBytesOnPhy(int phy) {
+        return phyBytes[phy];
+    }
+
+    /**
+     * Average throughput while connected on a PHY. Compare PHY_LE_1M and PHY_LE_2M to see the
+     * effect of PHY selection on bulk transfers
+     *
+     * @param phy BluetoothDevice.PHY_LE_1M, _2M or _CODED
+     * @return Bytes per second of reads, writes, notifications and channel traffic, or 0 if the PHY wasn't used
+     */
+    public synchronized double getThroughput(int phy) {
+        long duration = getTimeOnPhyMs(phy);
+        return (duration == 0) ? 0 : phyBytes[phy] * 1000.0 / duration;
+    }
+
+    @Override
+    public String toString() {
+        return "notifications:" + getNotificationCount() + "/" + getNotificationBytes() + "B"
+                + ", reads:" + getReadCount() + "/" + getReadBytes() + "B"
+                + ", writes:" + getWriteCount() + "/" + getWriteBytes() + "B"
+                + ", channel:" + getChannelReadBytes() + "/" + getChannelWriteBytes() + "B"
+                + ", sent:" + getSentCount() + "/" + getSentBytes() + "B"
+                + ", priority:" + getConnectionPriority()
+                + ", high:" + getTimeInPriorityMs(BluetoothGatt.CONNECTION_PRIORITY_HIGH) + "ms"
+                + ", balanced:" + getTimeInPriorityMs(BluetoothGatt.CONNECTION_PRIORITY_BALANCED) + "ms"
+                + ", lowPower:" + getTimeInPriorityMs(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) + "ms"
+                + ", phy:" + getPhy()
+                + ", 1M:" + (int) getThroughput(BluetoothDevice.PHY_LE_1M) + "B/s"
+                + ", 2M:" + (int) getThroughput(BluetoothDevice.PHY_LE_2M) + "B/s"
+                + ", coded:" + (int) getThroughput(BluetoothDevice.PHY_LE_CODED) + "B/s";
+    }
+}
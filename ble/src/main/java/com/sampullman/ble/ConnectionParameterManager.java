@@ -0,0 +1,206 @@
+package com.sampullman.ble;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Adapts the connection priority of each connection to its load.
+ * A connection is raised to HIGH while its operation queue is deep or notifications arrive
+ * quickly, runs at BALANCED under moderate load, and drops to LOW_POWER once it has been
+ * quiet for quietPeriodMs. Priority only decreases after the quiet period, so short gaps
+ * during a bulk transfer don't cause renegotiation.
+ * All methods except operationQueued must be called on the main thread.
+ */
+public class ConnectionParameterManager {
+    private static final long EVALUATE_INTERVAL_MS = 1000;
+    // While streaming in the background, so the manager doesn't wake the app every second
+    private static final long BACKGROUND_EVALUATE_INTERVAL_MS = 15000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final BluetoothLeService leService;
+    private final ArrayList<Tracked> tracked = new ArrayList<>();
+    // Pinned priorities, kept while a connection is disconnected and applied when it's tracked
+    private final Map<LeConnection, Integer> pins = new WeakHashMap<>();
+
+    private int highQueueDepth = 4;
+    private double highNotificationRate = 50;
+    private double balancedNotificationRate = 5;
+    private long quietPeriodMs = 5000;
+    private long evaluateIntervalMs = EVALUATE_INTERVAL_MS;
+
+    private static class Tracked {
+        final LeConnection connection;
+        int priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        // -1 when adapting
+        int pinnedPriority = -1;
+        long lastNotificationCount;
+        long lastEvaluateMs;
+        long lastHighMs, lastBalancedMs;
+
+        Tracked(LeConnection connection) {
+            this.connection = connection;
+            lastNotificationCount = connection.getMetrics().getNotificationCount();
+            lastEvaluateMs = lastHighMs = lastBalancedMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final Runnable evaluateTask = new Runnable() {
+        @Override
+        public void run() {
+            for(Tracked t : tracked) {
+                evaluate(t);
+            }
+            if(tracked.size() > 0) {
+                handler.postDelayed(this, evaluateIntervalMs);
+            }
+        }
+    };
+
+    ConnectionParameterManager(BluetoothLeService leService) {
+        this.leService = leService;
+    }
+
+    /**
+     * @param highQueueDepth Queued operations for one connection that trigger HIGH priority
+     * @param highNotificationRate Notifications per second that trigger HIGH priority
+     * @param balancedNotificationRate Notifications per second that keep a connection at BALANCED
+     * @param quietPeriodMs Time below a threshold before priority is lowered
+     */
+    public void setThresholds(int highQueueDepth, double highNotificationRate,
+                              double balancedNotificationRate, long quietPeriodMs) {
+        this.highQueueDepth = highQueueDepth;
+        this.highNotificationRate = highNotificationRate;
+        this.balancedNotificationRate = balancedNotificationRate;
+        this.quietPeriodMs = quietPeriodMs;
+    }
+
+    void setBackground(boolean background) {
+        evaluateIntervalMs = background ? BACKGROUND_EVALUATE_INTERVAL_MS : EVALUATE_INTERVAL_MS;
+    }
+
+    void track(LeConnection connection) {
+        if(find(connection) != null) {
+            return;
+        }
+        Tracked t = new Tracked(connection);
+        tracked.add(t);
+        connection.getMetrics().priorityChanged(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        if(tracked.size() == 1) {
+            handler.postDelayed(evaluateTask, evaluateIntervalMs);
+        }
+        Integer pinned = pins.get(connection);
+        if(pinned != null) {
+            t.pinnedPriority = pinned;
+            evaluate(t);
+        }
+    }
+
+    void untrack(LeConnection connection) {
+        Tracked t = find(connection);
+        if(t != null) {
+            tracked.remove(t);
+            connection.getMetrics().priorityChanged(-1);
+        }
+        if(tracked.size() == 0) {
+            handler.removeCallbacks(evaluateTask);
+        }
+    }
+
+    /**
+     * Fixes a connection's priority, disabling adaptation for it. If the connection isn't
+     * connected yet, the priority is applied once it is. Pins last across reconnects
+     *
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_*, or -1 to resume adapting
+     */
+    public void pin(LeConnection connection, int priority) {
+        if(priority < -1 || priority > BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+            throw new IllegalArgumentException("Invalid connection priority " + priority);
+        }
+        if(priority == -1) {
+            pins.remove(connection);
+        } else {
+            pins.put(connection, priority);
+        }
+        Tracked t = find(connection);
+        if(t != null) {
+            t.pinnedPriority = priority;
+            evaluate(t);
+        }
+    }
+
+    /**
+     * Re-evaluate immediately, e.g. when operations are queued in bulk. Operations are queued
+     * from any thread, so this posts the evaluation to the main thread
+     */
+    void operationQueued(BluetoothGatt gatt) {
+        handler.post(() -> evaluateQueued(gatt));
+    }
+
+    private void evaluateQueued(BluetoothGatt gatt) {
+        for(Tracked t : tracked) {
+            if(t.connection.gatt == gatt && t.priority != BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                    && leService.getQueueDepth(gatt) >= highQueueDepth) {
+                evaluate(t);
+            }
+        }
+    }
+
+    private void evaluate(Tracked t) {
+        long now = SystemClock.elapsedRealtime();
+        long notifications = t.connection.getMetrics().getNotificationCount();
+        long elapsed = Math.max(1, now - t.lastEvaluateMs);
+        double rate = (notifications - t.lastNotificationCount) * 1000.0 / elapsed;
+        t.lastNotificationCount = notifications;
+        t.lastEvaluateMs = now;
+
+        int depth = leService.getQueueDepth(t.connection.gatt);
+        if(depth >= highQueueDepth || rate >= highNotificationRate) {
+            t.lastHighMs = now;
+        }
+        if(depth > 0 || rate >= balancedNotificationRate) {
+            t.lastBalancedMs = now;
+        }
+
+        int priority;
+        if(t.pinnedPriority != -1) {
+            priority = t.pinnedPriority;
+        } else if(now - t.lastHighMs < quietPeriodMs) {
+            priority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        } else if(now - t.lastBalancedMs < quietPeriodMs) {
+            priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        } else {
+            priority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        }
+        if(priority != t.priority) {
+            apply(t, priority);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private void apply(Tracked t, int priority) {
+        BluetoothGatt gatt = t.connection.gatt;
+        if(gatt != null && gatt.requestConnectionPriority(priority)) {
+            Timber.d("Connection priority %d -> %d for %s", t.priority, priority, t.connection.getName());
+            t.priority = priority;
+            t.connection.getMetrics().priorityChanged(priority);
+        }
+    }
+
+    private Tracked find(LeConnection connection) {
+        for(Tracked t : tracked) {
+            if(t.connection == connection) {
+                return t;
+            }
+        }
+        return null;
+    }
+}
@@ -8,8 +8,10 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothProfile;
 import android.content.Intent;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
-import java.util.List;
+import com.sampullman.ble.operation.LeOperation;
 
 import timber.log.Timber;
 
@@ -21,47 +23,39 @@ import static com.sampullman.ble.BluetoothLeService.*;
  * For example: connection change and services discovered
  */
 public class GattCallback extends BluetoothGattCallback {
-    private final Handler handler = new Handler();
-    private BluetoothGatt gatt;
+    private final Handler handler = new Handler(Looper.getMainLooper());
     private final BluetoothLeService leService;
+    private final LeConnection connection;
+    private final NotificationQueue notificationQueue;
+    private final Runnable drainTask;
 
-    public GattCallback(BluetoothLeService leService) {
+    public GattCallback(BluetoothLeService leService, LeConnection connection) {
         this.leService = leService;
-    }
-
-    public void setGatt(BluetoothGatt gatt) {
-        this.gatt = gatt;
-    }
-
-    public void startConnectTimer() {
-        handler.postDelayed(() -> {
-            Timber.d("GATT CALLBACK FAIL gatt null=%b", gatt==null);
-            if(gatt != null) {
-                List<BluetoothDevice> devices = leService.getConnectedDevices();
-                if(devices != null && devices.size() == 0) {
-                    broadcastUpdate(gatt.getDevice(), ACTION_GATT_DISCONNECTED, BluetoothGatt.GATT_SUCCESS);
-                }
-                gatt.disconnect();
-                gatt.close();
-                gatt = null;
-            }
-        }, 10000);
+        this.connection = connection;
+        this.notificationQueue = connection.getNotificationQueue();
+        this.drainTask = () -> leService.drainNotifications(connection);
     }
 
     @Override
     public void onConnectionStateChange(final BluetoothGatt gatt, final int status, int newState) {
         Timber.d("GATT STATUS: %d, newState=%d", status, newState);
-        leService.operationComplete();
-        handler.removeCallbacksAndMessages(null);
+        LeOperation operation = currentOperation(gatt);
+        if(operation != null && !operation.onConnectionStateChange(gatt, status, newState)) {
+            leService.operationComplete();
+        }
 
         if(status == GATT_ERROR || status == GATT_CONN_FAIL_ESTABLISH) {
+            handler.post(connection::disconnected);
             broadcastUpdate(null, ACTION_BLUETOOTH_ERROR, status);
 
         } else {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
+                handler.post(connection::connected);
                 broadcastUpdate(gatt.getDevice(), ACTION_GATT_CONNECTED, GATT_SUCCESS);
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                handler.post(connection::disconnected);
+                leService.flushNotifications(connection);
                 broadcastUpdate(gatt.getDevice(), ACTION_GATT_DISCONNECTED, GATT_SUCCESS);
             }
         }
@@ -70,10 +64,27 @@ public class GattCallback extends BluetoothGattCallback {
     @Override
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
         Timber.d("MTU: %d, status=%d", mtu, status);
+        connection.mtuChanged(mtu, status);
+        LeOperation operation = currentOperation(gatt);
+        if(operation != null && !operation.onMtuChanged(gatt, mtu, status)) {
+            leService.operationComplete();
+        }
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        Timber.d("PHY update tx:%d rx:%d status=%d", txPhy, rxPhy, status);
+        connection.phyUpdated(txPhy, rxPhy, status);
+    }
+
+    @Override
+    public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        connection.phyUpdated(txPhy, rxPhy, status);
     }
 
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        handler.post(() -> connection.handleServicesDiscovered(status));
         broadcastUpdate(gatt.getDevice(), ACTION_GATT_SERVICES_DISCOVERED, status);
     }
 
@@ -81,33 +92,96 @@ public class GattCallback extends BluetoothGattCallback {
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic cha, int status) {
         super.onCharacteristicWrite(gatt, cha, status);
         if(status == BluetoothGatt.GATT_SUCCESS) {
+            connection.getMetrics().characteristicWritten(valueLength(cha));
+        }
+        LeOperation operation = currentOperation(gatt);
+        if(operation != null && operation.onCharacteristicWrite(gatt, cha, status)) {
+            return;
+        }
+        if(status == BluetoothGatt.GATT_SUCCESS) {
+            byte[] value = cha.getValue();
+            connection.writeComplete(cha.getUuid().toString(), (value == null) ? null : value.clone());
             broadcastUpdate(gatt.getDevice(), ACTION_GATT_WRITE, status, cha);
         } else {
             Timber.d("LE CHARACTERISTIC WRITE FAILED. status:%s", status);
         }
-        leService.operationComplete();
+        if(operation != null) {
+            leService.operationComplete();
+        }
     }
 
     @Override
     public void onCharacteristicRead(BluetoothGatt gatt,
                                      BluetoothGattCharacteristic characteristic,
                                      int status) {
+        byte[] value = characteristic.getValue();
+        connection.readComplete(characteristic.getUuid().toString(),
+                (value == null) ? null : value.clone(), status);
         if(status == BluetoothGatt.GATT_SUCCESS) {
+            connection.getMetrics().characteristicRead(valueLength(characteristic));
             broadcastUpdate(gatt.getDevice(), ACTION_DATA_AVAILABLE, status, characteristic);
         } else {
             Timber.d("LE CHARACTERISTIC READ FAILED %d", status);
         }
-        leService.operationComplete();
+        LeOperation operation = currentOperation(gatt);
+        if(operation != null && !operation.onCharacteristicRead(gatt, characteristic, status)) {
+            leService.operationComplete();
+        }
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        broadcastUpdate(gatt.getDevice(), ACTION_GATT_NOTIFY, GATT_SUCCESS, characteristic);
+        long timestamp = SystemClock.elapsedRealtimeNanos();
+        // Share the table's string so later map lookups hit the cached hash and identity check
+        UuidTable uuids = connection.getUuidTable();
+        int handle = uuids.handleOf(characteristic.getUuid());
+        String uuid = (handle == UuidTable.NO_HANDLE) ? characteristic.getUuid().toString() : uuids.getString(handle);
+        // Copy the value, the stack may reuse the characteristic's buffer for the next packet
+        byte[] value = characteristic.getValue();
+        value = (value == null) ? new byte[0] : value.clone();
+        connection.getMetrics().notificationReceived(value.length);
+        connection.getCache().update(uuid, value);
+        ClockOffsetEstimator clock = connection.getClockEstimator(uuid);
+        if(clock != null) {
+            clock.add(value, timestamp);
+        }
+
+        notificationQueue.offer(uuid, handle, value, timestamp);
+        if(notificationQueue.requestDrain()) {
+            leService.postDrain(drainTask);
+        }
+    }
+
+    @Override
+    public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+        LeOperation operation = currentOperation(gatt);
+        if(operation != null && !operation.onReliableWriteCompleted(gatt, status)) {
+            leService.operationComplete();
+        }
     }
 
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        leService.operationComplete();
+        LeOperation operation = currentOperation(gatt);
+        if(operation != null && !operation.onDescriptorWrite(gatt, descriptor, status)) {
+            leService.operationComplete();
+        }
+    }
+
+    // The operation in progress, or null if this callback doesn't belong to it, such as a late
+    // response to an operation that already timed out
+    private LeOperation currentOperation(BluetoothGatt gatt) {
+        LeOperation operation = leService.currentOperation();
+        if(operation != null && !operation.ownsGatt(gatt)) {
+            Timber.d("Callback from %s doesn't belong to the current operation", gatt.getDevice());
+            return null;
+        }
+        return operation;
+    }
+
+    private static int valueLength(BluetoothGattCharacteristic characteristic) {
+        byte[] value = characteristic.getValue();
+        return (value == null) ? 0 : value.length;
     }
 
     private void broadcastUpdate(BluetoothDevice device, final String action, int status) {
@@ -0,0 +1,439 @@
+package com.sampullman.ble;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Peripheral role: hosts ServerServices with BluetoothGattServer so centrals can connect to
+ * this device. Advertising is left to the app.
+ * Each notifyCharacteristic call is queued per subscribed central and sent from the previous notification's
+ * onNotificationSent callback, the pacing Android needs to avoid dropping notifications, so a
+ * subscriber is kept as busy as its connection allows without the app waiting on callbacks.
+ * Reads are served from the binder thread; Listener callbacks run on the main thread.
+ */
+public class GattServer {
+    // Delay before resending a notification the stack was too busy to accept
+    private static final long RETRY_DELAY_MS = 5;
+    private static final int MAX_SEND_RETRIES = 20;
+
+    /**
+     * Called on the main thread
+     */
+    public interface Listener {
+        void deviceConnected(ServerConnection connection);
+        void deviceDisconnected(ServerConnection connection);
+
+        /**
+         * @param subscription SubscriptionSet.NONE, NOTIFY or INDICATE
+         */
+        void subscriptionChanged(ServerConnection connection, UUID uuid, int subscription);
+        void characteristicWritten(ServerConnection connection, UUID uuid, byte[] data);
+    }
+
+    private final BluetoothLeService leService;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, ServerConnection> connections = new ConcurrentHashMap<>();
+    private final UuidTable uuidTable;
+    // Indexed by handle
+    private final ServerService.Characteristic[] definitions;
+    private final BluetoothGattCharacteristic[] characteristics;
+    private final List<BluetoothGattService> gattServices = new ArrayList<>();
+    // Guards characteristic values, which are shared by all centrals while a notification is sent
+    private final Object sendLock = new Object();
+    private volatile BluetoothGattServer gattServer;
+    private int servicesAdded = 0;
+
+    GattServer(BluetoothLeService leService, List<ServerService> services, Listener listener) {
+        this.leService = leService;
+        this.listener = listener;
+        for(ServerService service : services) {
+            gattServices.add(service.build());
+        }
+        uuidTable = UuidTable.EMPTY.extend(gattServices);
+        definitions = new ServerService.Characteristic[uuidTable.size()];
+        characteristics = new BluetoothGattCharacteristic[uuidTable.size()];
+        for(int i = 0; i < services.size(); i++) {
+            for(ServerService.Characteristic c : services.get(i).characteristics) {
+                int handle = uuidTable.handleOf(c.uuid);
+                definitions[handle] = c;
+                characteristics[handle] = gattServices.get(i).getCharacteristic(c.uuid);
+            }
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    boolean open() {
+        BluetoothManager manager = (BluetoothManager) leService.getSystemService(Context.BLUETOOTH_SERVICE);
+        gattServer = (manager == null) ? null : manager.openGattServer(leService, callback);
+        if(gattServer == null) {
+            Timber.e("Unable to open GATT server");
+            return false;
+        }
+        // Services must be added one at a time, the next after onServiceAdded
+        addNextService();
+        return true;
+    }
+
+    @SuppressLint("MissingPermission")
+    private synchronized void addNextService() {
+        if(gattServer != null && servicesAdded < gattServices.size()) {
+            gattServer.addService(gattServices.get(servicesAdded));
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    public synchronized void close() {
+        handler.removeCallbacksAndMessages(null);
+        for(ServerConnection connection : connections.values()) {
+            connection.disconnected();
+        }
+        connections.clear();
+        if(gattServer != null) {
+            gattServer.clearServices();
+            gattServer.close();
+            gattServer = null;
+        }
+    }
+
+    /**
+     * Handles of the hosted characteristics
+     */
+    public UuidTable getUuidTable() {
+        return uuidTable;
+    }
+
+    public List<ServerConnection> getConnections() {
+        return new ArrayList<>(connections.values());
+    }
+
+    public ServerConnection getConnection(BluetoothDevice device) {
+        return connections.get(device.getAddress());
+    }
+
+    @SuppressLint("MissingPermission")
+    public synchronized void disconnect(ServerConnection connection) {
+        if(gattServer != null) {
+            gattServer.cancelConnection(connection.getDevice());
+        }
+    }
+
+    /**
+     * Sets the value served to reads of a characteristic
+     */
+    public void setValue(UUID uuid, byte[] value) {
+        int handle = uuidTable.handleOf(uuid);
+        if(handle == UuidTable.NO_HANDLE) {
+            Timber.e("Characteristic not hosted! %s", uuid);
+            return;
+        }
+        definitions[handle].value = (value == null) ? null : value.clone();
+    }
+
+    /**
+     * Queues a notification, or indication, to every central subscribed to the characteristic.
+     * Data longer than a central's MTU - 3 is truncated by the stack
+     *
+     * @return Number of centrals the notification was queued for
+     */
+    public int notifyCharacteristic(UUID uuid, byte[] data) {
+        int handle = uuidTable.handleOf(uuid);
+        if(handle == UuidTable.NO_HANDLE) {
+            Timber.e("Characteristic not hosted! %s", uuid);
+            return 0;
+        }
+        data = data.clone();
+        definitions[handle].value = data;
+        int count = 0;
+        for(ServerConnection connection : connections.values()) {
+            if(connection.getSubscription(handle) != SubscriptionSet.NONE && queue(connection, handle, data)) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Queues a notification, or indication, to one central
+     *
+     * @return False if the central isn't subscribed or the queue dropped the notification
+     */
+    public boolean notifyCharacteristic(ServerConnection connection, UUID uuid, byte[] data) {
+        int handle = uuidTable.handleOf(uuid);
+        if(handle == UuidTable.NO_HANDLE || connection.getSubscription(handle) == SubscriptionSet.NONE) {
+            return false;
+        }
+        return queue(connection, handle, data.clone());
+    }
+
+    private boolean queue(ServerConnection connection, int handle, byte[] data) {
+        boolean queued;
+        // NotificationQueue has a single producer
+        synchronized(connection.getQueue()) {
+            queued = connection.getQueue().offer(uuidTable.getString(handle), handle, data,
+                    SystemClock.elapsedRealtimeNanos());
+        }
+        sendNext(connection);
+        return queued;
+    }
+
+    // Hands the next queued notification to the stack, unless one is already in flight
+    private void sendNext(ServerConnection connection) {
+        NotificationQueue queue = connection.getQueue();
+        NotificationQueue.Entry entry = connection.entry;
+        while(connection.isConnected() && connection.sending.compareAndSet(false, true)) {
+            if(!connection.retrying && !queue.poll(entry)) {
+                connection.sending.set(false);
+                // A notification may have been queued after the poll, before sending was cleared
+                if(queue.size() == 0) {
+                    return;
+                }
+                continue;
+            }
+            int subscription = connection.getSubscription(entry.handle);
+            if(subscription == SubscriptionSet.NONE) {
+                connection.retrying = false;
+                connection.sending.set(false);
+                continue;
+            }
+            // Set before sending, onNotificationSent may run on another thread before send returns
+            int retries = connection.retries;
+            connection.retrying = false;
+            connection.retries = 0;
+            connection.inFlightBytes = entry.data.length;
+            if(send(connection, entry, subscription == SubscriptionSet.INDICATE)) {
+                return;
+            }
+            // Retry state is set before releasing sending, so whoever takes it next resends
+            // the entry instead of polling over it
+            if(retries < MAX_SEND_RETRIES) {
+                // The stack is busy, try the same notification again shortly
+                connection.retries = retries + 1;
+                connection.retrying = true;
+                connection.sending.set(false);
+                handler.postDelayed(() -> sendNext(connection), RETRY_DELAY_MS);
+                return;
+            }
+            Timber.w("Dropping notification to %s after %d retries", connection.getName(), MAX_SEND_RETRIES);
+            connection.getMetrics().notificationFailed();
+            connection.sending.set(false);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private boolean send(ServerConnection connection, NotificationQueue.Entry entry, boolean confirm) {
+        synchronized(sendLock) {
+            BluetoothGattServer server = gattServer;
+            if(server == null) {
+                return false;
+            }
+            BluetoothGattCharacteristic cha = characteristics[entry.handle];
+            cha.setValue(entry.data);
+            return server.notifyCharacteristicChanged(connection.getDevice(), cha, confirm);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private void respond(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+        BluetoothGattServer server = gattServer;
+        if(server != null) {
+            server.sendResponse(device, requestId, status, offset, value);
+        }
+    }
+
+    private ServerConnection connectionFor(BluetoothDevice device) {
+        ServerConnection connection = connections.get(device.getAddress());
+        if(connection == null) {
+            connection = new ServerConnection(this, device, leService.createNotificationQueue(), uuidTable.size());
+            connections.put(device.getAddress(), connection);
+        }
+        return connection;
+    }
+
+    private void written(ServerConnection connection, int handle, byte[] value) {
+        connection.getMetrics().characteristicWritten(value.length);
+        definitions[handle].value = value;
+        UUID uuid = uuidTable.getUuid(handle);
+        handler.post(() -> listener.characteristicWritten(connection, uuid, value));
+    }
+
+    private final BluetoothGattServerCallback callback = new BluetoothGattServerCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            Timber.d("GATT server STATUS: %d, newState=%d", status, newState);
+            if(newState == BluetoothProfile.STATE_CONNECTED) {
+                ServerConnection connection = connectionFor(device);
+                connection.getMetrics().phyChanged(BluetoothDevice.PHY_LE_1M);
+                handler.post(() -> listener.deviceConnected(connection));
+            } else if(newState == BluetoothProfile.STATE_DISCONNECTED) {
+                ServerConnection connection = connections.remove(device.getAddress());
+                if(connection != null) {
+                    connection.disconnected();
+                    handler.post(() -> listener.deviceDisconnected(connection));
+                }
+            }
+        }
+
+        @Override
+        public void onServiceAdded(int status, BluetoothGattService service) {
+            if(status != BluetoothGatt.GATT_SUCCESS) {
+                Timber.e("Failed to add service %s: %d", service.getUuid(), status);
+            }
+            synchronized(GattServer.this) {
+                servicesAdded += 1;
+            }
+            addNextService();
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                                BluetoothGattCharacteristic characteristic) {
+            int handle = uuidTable.handleOf(characteristic.getUuid());
+            ServerService.Characteristic definition = (handle == UuidTable.NO_HANDLE) ? null : definitions[handle];
+            if(definition == null || (definition.properties & BluetoothGattCharacteristic.PROPERTY_READ) == 0) {
+                respond(device, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset, null);
+                return;
+            }
+            byte[] value = definition.value;
+            if(value == null) {
+                value = new byte[0];
+            }
+            if(offset > value.length) {
+                respond(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                return;
+            }
+            byte[] part = Arrays.copyOfRange(value, offset, value.length);
+            connectionFor(device).getMetrics().characteristicRead(part.length);
+            respond(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, part);
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
+                                                 BluetoothGattCharacteristic characteristic,
+                                                 boolean preparedWrite, boolean responseNeeded,
+                                                 int offset, byte[] value) {
+            int handle = uuidTable.handleOf(characteristic.getUuid());
+            int writable = BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+            if(handle == UuidTable.NO_HANDLE || (definitions[handle].properties & writable) == 0) {
+                if(responseNeeded) {
+                    respond(device, requestId, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, offset, null);
+                }
+                return;
+            }
+            ServerConnection connection = connectionFor(device);
+            byte[] data = (value == null) ? new byte[0] : value;
+            if(!preparedWrite) {
+                written(connection, handle, data);
+            } else if(!connection.prepareWrite(handle, offset, data)) {
+                if(responseNeeded) {
+                    respond(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                }
+                return;
+            }
+            if(responseNeeded) {
+                respond(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, data);
+            }
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            ServerConnection connection = connectionFor(device);
+            byte[][] values = connection.takePreparedWrites();
+            for(int handle = 0; execute && handle < values.length; handle++) {
+                if(values[handle] != null) {
+                    written(connection, handle, values[handle]);
+                }
+            }
+            respond(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+        }
+
+        @Override
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
+                                            BluetoothGattDescriptor descriptor) {
+            int handle = uuidTable.handleOf(descriptor.getCharacteristic().getUuid());
+            if(handle == UuidTable.NO_HANDLE || !ServerService.CCCD_UUID.equals(descriptor.getUuid())) {
+                respond(device, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset, null);
+                return;
+            }
+            int subscription = connectionFor(device).getSubscription(handle);
+            byte[] value = (subscription == SubscriptionSet.INDICATE) ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE
+                    : (subscription == SubscriptionSet.NOTIFY) ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                    : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+            respond(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+                                             BluetoothGattDescriptor descriptor,
+                                             boolean preparedWrite, boolean responseNeeded,
+                                             int offset, byte[] value) {
+            int handle = uuidTable.handleOf(descriptor.getCharacteristic().getUuid());
+            if(handle == UuidTable.NO_HANDLE || !ServerService.CCCD_UUID.equals(descriptor.getUuid())
+                    || value == null || value.length == 0) {
+                if(responseNeeded) {
+                    respond(device, requestId, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, offset, null);
+                }
+                return;
+            }
+            int subscription = ((value[0] & 0x02) != 0) ? SubscriptionSet.INDICATE
+                    : ((value[0] & 0x01) != 0) ? SubscriptionSet.NOTIFY : SubscriptionSet.NONE;
+            ServerConnection connection = connectionFor(device);
+            connection.setSubscription(handle, subscription);
+            if(responseNeeded) {
+                respond(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+            }
+            UUID uuid = uuidTable.getUuid(handle);
+            handler.post(() -> listener.subscriptionChanged(connection, uuid, subscription));
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            ServerConnection connection = connections.get(device.getAddress());
+            if(connection == null) {
+                return;
+            }
+            if(status == BluetoothGatt.GATT_SUCCESS) {
+                connection.getMetrics().notificationSent(connection.inFlightBytes);
+            } else {
+                connection.getMetrics().notificationFailed();
+            }
+            connection.sending.set(false);
+            sendNext(connection);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            Timber.d("GATT server MTU: %d", mtu);
+            connectionFor(device).mtuChanged(mtu);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+            if(status == BluetoothGatt.GATT_SUCCESS) {
+                connectionFor(device).getMetrics().phyChanged(rxPhy);
+            }
+        }
+    };
+}
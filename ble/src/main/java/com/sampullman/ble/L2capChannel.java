@@ -0,0 +1,458 @@
+package com.sampullman.ble;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import timber.log.Timber;
+
+/**
+ * Byte stream to a device over an L2CAP connection-oriented channel (API 29+), for bulk
+ * transfers without ATT's per-packet overhead and request/response pacing.
+ * The channel follows its connection: it opens when the connection is READY, closes when it
+ * disconnects, and opens again after a reconnect. If L2CAP isn't available, because of the
+ * API level or because the channel can't be opened, it falls back to writing a GATT
+ * characteristic in chunks that fit the MTU and reading notifications from another.
+ * Streams are replaced each time the channel opens, so get them in Listener.channelOpened.
+ */
+public class L2capChannel {
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    // GATT fallback writes queued for the connection before the output stream blocks
+    static final int MAX_QUEUED_WRITES = 8;
+    private static final long QUEUE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Called on the main thread
+     */
+    public interface Listener {
+        void channelOpened(L2capChannel channel);
+        void channelClosed(L2capChannel channel);
+    }
+
+    /**
+     * Characteristics carrying the stream when L2CAP isn't available
+     */
+    public static class GattFallback {
+        final UUID serviceUuid, txUuid, rxUuid;
+
+        /**
+         * @param txUuid Characteristic written with outgoing data
+         * @param rxUuid Characteristic notifying incoming data
+         */
+        public GattFallback(UUID serviceUuid, UUID txUuid, UUID rxUuid) {
+            this.serviceUuid = serviceUuid;
+            this.txUuid = txUuid;
+            this.rxUuid = rxUuid;
+        }
+    }
+
+    private final LeConnection connection;
+    private final int psm;
+    private final boolean secure;
+    private final GattFallback fallback;
+    private final Listener listener;
+    private final int bufferSize;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LeConnection.StateListener stateListener = this::connectionStateChanged;
+
+    // Changed on the main thread
+    private volatile BluetoothSocket socket;
+    private volatile InputStream input;
+    private volatile OutputStream output;
+    private volatile NotificationInputStream notificationInput;
+    private volatile boolean open = false, l2cap = false;
+    private boolean connecting = false, closed = false;
+
+    L2capChannel(LeConnection connection, int psm, boolean secure, GattFallback fallback,
+                 Listener listener, int bufferSize) {
+        this.connection = connection;
+        this.psm = psm;
+        this.secure = secure;
+        this.fallback = fallback;
+        this.listener = listener;
+        this.bufferSize = bufferSize;
+    }
+
+    void start() {
+        connection.addStateListener(stateListener);
+        if(connection.isReady()) {
+            openChannel();
+        }
+    }
+
+    public LeConnection getConnection() {
+        return connection;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return True if the channel is using L2CAP, false if it fell back to GATT
+     */
+    public boolean isL2cap() {
+        return l2cap;
+    }
+
+    /**
+     * @return Buffered stream of incoming data. Blocks until data arrives, and ends when the channel closes
+     */
+    public InputStream getInputStream() throws IOException {
+        InputStream in = input;
+        if(in == null) {
+            throw new IOException("Channel not open");
+        }
+        return in;
+    }
+
+    /**
+     * @return Buffered stream for outgoing data. Call flush() to send buffered data. Writes
+     *         block while the GATT fallback waits for queued writes, so don't write on the main thread
+     */
+    public OutputStream getOutputStream() throws IOException {
+        OutputStream out = output;
+        if(out == null) {
+            throw new IOException("Channel not open");
+        }
+        return out;
+    }
+
+    /**
+     * Reads available data into dst, blocking until at least one byte is available
+     *
+     * @return Bytes read, or -1 if the channel closed
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        InputStream in = getInputStream();
+        int count;
+        if(dst.hasArray()) {
+            count = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if(count > 0) {
+                dst.position(dst.position() + count);
+            }
+        } else {
+            byte[] bytes = new byte[Math.min(dst.remaining(), bufferSize)];
+            count = in.read(bytes);
+            if(count > 0) {
+                dst.put(bytes, 0, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Buffers the remaining bytes of src for sending
+     */
+    public void write(ByteBuffer src) throws IOException {
+        OutputStream out = getOutputStream();
+        if(src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+        } else {
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    public void flush() throws IOException {
+        getOutputStream().flush();
+    }
+
+    /**
+     * Closes the channel and stops it from reopening on reconnect
+     */
+    public void close() {
+        handler.post(() -> {
+            closed = true;
+            connection.removeStateListener(stateListener);
+            if(open && !l2cap && connection.isReady()) {
+                connection.getSubscriptions().set(fallback.serviceUuid, fallback.rxUuid, SubscriptionSet.NONE).apply();
+            }
+            closeStreams();
+        });
+    }
+
+    private void connectionStateChanged(LeConnection connection, int oldState, int newState) {
+        if(newState == LeConnection.STATE_READY) {
+            openChannel();
+        } else if(newState == LeConnection.STATE_DISCONNECTING || newState == LeConnection.STATE_DISCONNECTED) {
+            closeStreams();
+        }
+    }
+
+    private void openChannel() {
+        if(closed || open || connecting) {
+            return;
+        }
+        if(psm > 0 && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
+            connecting = true;
+            // connect() blocks until the channel is set up
+            new Thread(this::connectL2cap, "L2capChannel").start();
+        } else {
+            openFallback();
+        }
+    }
+
+    @TargetApi(29)
+    @SuppressLint("MissingPermission")
+    private void connectL2cap() {
+        BluetoothDevice device = connection.getDevice();
+        BluetoothSocket s = null;
+        try {
+            s = secure ? device.createL2capChannel(psm) : device.createInsecureL2capChannel(psm);
+            s.connect();
+            final BluetoothSocket connected = s;
+            handler.post(() -> l2capConnected(connected));
+        } catch(IOException e) {
+            Timber.w(e, "L2CAP channel %d to %s failed, using GATT", psm, connection.getName());
+            closeSocket(s);
+            handler.post(() -> {
+                connecting = false;
+                openFallback();
+            });
+        }
+    }
+
+    private void l2capConnected(BluetoothSocket s) {
+        connecting = false;
+        if(closed || !connection.isReady()) {
+            closeSocket(s);
+            return;
+        }
+        ConnectionMetrics metrics = connection.getMetrics();
+        try {
+            input = new BufferedInputStream(new CountingInputStream(s.getInputStream(), metrics), bufferSize);
+            output = new BufferedOutputStream(new CountingOutputStream(s.getOutputStream(), metrics), bufferSize);
+        } catch(IOException e) {
+            Timber.w(e, "L2CAP channel streams unavailable, using GATT");
+            closeSocket(s);
+            openFallback();
+            return;
+        }
+        socket = s;
+        l2cap = true;
+        open = true;
+        Timber.d("L2CAP channel %d open to %s", psm, connection.getName());
+        listener.channelOpened(this);
+    }
+
+    private void openFallback() {
+        if(closed || !connection.isReady()) {
+            return;
+        }
+        if(fallback == null) {
+            Timber.e("L2CAP unavailable for %s and no GATT fallback set", connection.getName());
+            return;
+        }
+        notificationInput = new NotificationInputStream();
+        input = new BufferedInputStream(notificationInput, bufferSize);
+        output = new BufferedOutputStream(new WriteOutputStream(), bufferSize);
+        connection.getSubscriptions().set(fallback.serviceUuid, fallback.rxUuid, SubscriptionSet.NOTIFY).apply();
+        l2cap = false;
+        open = true;
+        Timber.d("GATT fallback channel open to %s", connection.getName());
+        listener.channelOpened(this);
+    }
+
+    private void closeStreams() {
+        boolean wasOpen = open;
+        open = false;
+        closeSocket(socket);
+        socket = null;
+        if(notificationInput != null) {
+            notificationInput.close();
+            notificationInput = null;
+        }
+        input = null;
+        output = null;
+        if(wasOpen) {
+            listener.channelClosed(this);
+        }
+    }
+
+    private static void closeSocket(BluetoothSocket s) {
+        if(s != null) {
+            try {
+                s.close();
+            } catch(IOException e) {
+                Timber.d(e, "L2CAP socket close failed");
+            }
+        }
+    }
+
+    /**
+     * Called on the main thread with each notification of the connection
+     */
+    void notificationReceived(String uuid, byte[] data) {
+        NotificationInputStream in = notificationInput;
+        if(in != null && fallback.rxUuid.toString().equals(uuid)) {
+            in.append(data);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final ConnectionMetrics metrics;
+
+        CountingInputStream(InputStream in, ConnectionMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = in.read();
+            if(value >= 0) {
+                metrics.channelRead(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if(count > 0) {
+                metrics.channelRead(count);
+            }
+            return count;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final ConnectionMetrics metrics;
+
+        CountingOutputStream(OutputStream out, ConnectionMetrics metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.channelWritten(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            metrics.channelWritten(len);
+        }
+    }
+
+    // Incoming data of the GATT fallback, appended from notifications
+    private static class NotificationInputStream extends InputStream {
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int offset = 0;
+        private boolean closed = false;
+
+        synchronized void append(byte[] data) {
+            if(!closed && data.length > 0) {
+                chunks.add(data);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            while(chunks.isEmpty() && !closed) {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            int count = 0;
+            while(count < len && !chunks.isEmpty()) {
+                byte[] chunk = chunks.peek();
+                int n = Math.min(len - count, chunk.length - offset);
+                System.arraycopy(chunk, offset, b, off + count, n);
+                count += n;
+                offset += n;
+                if(offset == chunk.length) {
+                    chunks.poll();
+                    offset = 0;
+                }
+            }
+            return (count == 0) ? -1 : count;
+        }
+
+        @Override
+        public synchronized int available() {
+            int available = -offset;
+            for(byte[] chunk : chunks) {
+                available += chunk.length;
+            }
+            return Math.max(available, 0);
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    // Outgoing data of the GATT fallback, queued as characteristic writes that fit the MTU.
+    // Writes block while the connection has MAX_QUEUED_WRITES operations queued, so a fast
+    // writer can't fill the service's operation queue. Don't write from the main thread
+    private class WriteOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int chunkSize = connection.getMtu() - 3;
+            for(int i = 0; i < len; i += chunkSize) {
+                awaitQueueSpace();
+                byte[] chunk = Arrays.copyOfRange(b, off + i, off + Math.min(len, i + chunkSize));
+                connection.writeCharacteristic(fallback.serviceUuid, fallback.txUuid, chunk);
+            }
+        }
+
+        private void awaitQueueSpace() throws IOException {
+            while(true) {
+                if(!open) {
+                    throw new IOException("Channel closed");
+                }
+                if(connection.leService.getQueueDepth(connection.gatt) < MAX_QUEUED_WRITES) {
+                    return;
+                }
+                LockSupport.parkNanos(QUEUE_PARK_NANOS);
+                if(Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+}
@@ -2,8 +2,8 @@ package com.sampullman.ble;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.app.Notification;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -13,12 +13,23 @@ import android.content.ServiceConnection;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import com.sampullman.ble.event.LeConnectionEvent;
+import com.sampullman.ble.event.LeEventDispatcher;
+import com.sampullman.ble.operation.GroupWriteOperation;
+import com.sampullman.ble.record.NotificationRecorder;
+import com.sampullman.ble.stream.SourcePublisher;
+import com.sampullman.ble.stream.StreamPublisher;
 
 import org.greenrobot.eventbus.EventBus;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import timber.log.Timber;
 
@@ -30,28 +41,244 @@ import static com.sampullman.ble.BluetoothLeService.*;
  */
 public class LeClient {
 
-    private final EventBus bus = EventBus.getDefault();
+    private final LeEventDispatcher eventDispatcher = new LeEventDispatcher();
     private BluetoothLeService leService;
     // list of current connections. the last index should always be the EDR connection;
     private final ArrayList<LeConnection> connectionList = new ArrayList<>();
     private BleListener bleListener;
+    private BatchListener batchListener;
+    private NotificationBatcher notificationBatcher;
+    private final SourcePublisher<LeConnectionEvent> connectionEvents = new SourcePublisher<>();
+    private final LeConnectionPool connectionPool = new LeConnectionPool(new LeConnectionPool.Connector() {
+        @Override
+        public void connect(LeConnection connection) {
+            connectLeDelayed(connection);
+        }
+
+        @Override
+        public void evict(LeConnection connection) {
+            connection.disconnectAndCloseGatt();
+            connectionList.remove(connection);
+        }
+    });
 
     public interface BleListener {
         void servicesDiscovered(LeConnection connection);
         void characteristicRead(LeConnection connection, String uuid, byte[] data);
         void characteristicNotification(LeConnection connection, String uuid, byte[] data);
         void characteristicWriteComplete(LeConnection connection, String uuid, byte[] data);
+
+        /**
+         * Notification with the SystemClock.elapsedRealtimeNanos at which it reached the GATT
+         * callback, before any queueing delay. Override to use the timestamp
+         */
+        default void characteristicNotification(LeConnection connection, String uuid, byte[] data, long timestamp) {
+            characteristicNotification(connection, uuid, data);
+        }
+
+        /**
+         * Notification with the characteristic's handle in connection.getUuidTable(), for dispatch
+         * by array index instead of by uuid. The handle is UuidTable.NO_HANDLE if the characteristic
+         * wasn't discovered. Override to use the handle
+         */
+        default void characteristicNotification(LeConnection connection, int handle, String uuid, byte[] data, long timestamp) {
+            characteristicNotification(connection, uuid, data, timestamp);
+        }
     }
 
+    /**
+     * Receives notifications when batching is enabled. Replaces BleListener.characteristicNotification
+     */
+    public interface BatchListener {
+        void characteristicNotifications(LeConnection connection, NotificationBatch batch);
+    }
+
+    // Requests made before the service is bound, replayed in order on binding. Main thread only
+    private final List<Runnable> pendingRequests = new ArrayList<>();
+    private final FutureTask<BluetoothLeService> readyFuture = new FutureTask<>(() -> leService);
+    private final long createdMs = SystemClock.elapsedRealtime();
+    private long timeToBindMs = -1, timeToFirstConnectionMs = -1;
+
     public LeClient(Context appContext) {
         registerAndBind(appContext);
-        bus.register(this);
+        eventDispatcher.setEventBus(EventBus.getDefault());
+    }
+
+    /**
+     * Runs a request now if the service is bound, otherwise once it is
+     */
+    private void whenBound(Runnable request) {
+        if(leService != null) {
+            request.run();
+        } else {
+            Timber.d("BLE Service not bound yet, request deferred");
+            pendingRequests.add(request);
+        }
+    }
+
+    /**
+     * Completes with the service once it is bound. Don't block on it from the main thread,
+     * since binding completes there
+     */
+    public Future<BluetoothLeService> getReadyFuture() {
+        return readyFuture;
+    }
+
+    /**
+     * @return Time from creating this client to the service being bound, or -1 if it isn't yet
+     */
+    public long getTimeToBindMs() {
+        return timeToBindMs;
+    }
+
+    /**
+     * @return Time from creating this client to the first connection becoming READY, or -1
+     */
+    public long getTimeToFirstConnectionMs() {
+        return timeToFirstConnectionMs;
     }
 
     public void setBleListener(BleListener listener) {
         this.bleListener = listener;
     }
 
+    /**
+     * Deliver notifications in batches instead of one callback per packet. A batch is flushed
+     * when it reaches maxPackets or maxBytes, after maxLatencyMs, or on flushNotifications()
+     */
+    public void enableNotificationBatching(int maxPackets, int maxBytes, long maxLatencyMs,
+                                           BatchListener listener) {
+        this.batchListener = listener;
+        notificationBatcher = new NotificationBatcher(maxPackets, maxBytes, maxLatencyMs,
+                this::handleNotificationBatch);
+        if(leService != null) {
+            leService.setNotificationBatcher(notificationBatcher);
+        }
+    }
+
+    public void disableNotificationBatching() {
+        notificationBatcher = null;
+        if(leService != null) {
+            leService.setNotificationBatcher(null);
+        }
+    }
+
+    /**
+     * Deliver all partially filled batches now, e.g. when the consumer is ready for more data
+     */
+    public void flushNotifications() {
+        if(notificationBatcher != null) {
+            notificationBatcher.flush();
+        }
+    }
+
+    /**
+     * Bounds the notifications buffered for each connection created after this call.
+     * Drop counters are available from LeConnection.getNotificationQueue()
+     *
+     * @param dropPolicy NotificationQueue.DROP_OLDEST, DROP_NEWEST or BLOCK
+     */
+    public void setNotificationQueuePolicy(int capacity, int dropPolicy, long blockTimeoutMs) {
+        whenBound(() -> leService.setNotificationQueuePolicy(capacity, dropPolicy, blockTimeoutMs));
+    }
+
+    /**
+     * Records all notifications to segment files in a directory, for offline analysis
+     *
+     * @param directory Where to write segments, or null to stop recording
+     * @return The recorder, for configuring sample encoding and compression
+     */
+    public NotificationRecorder setNotificationRecording(File directory) {
+        NotificationRecorder recorder = (directory == null) ? null : new NotificationRecorder(directory);
+        whenBound(() -> leService.setNotificationRecorder(recorder));
+        return recorder;
+    }
+
+    /**
+     * Keeps connections, subscriptions and the GATT server running after this client unbinds,
+     * with the service in the foreground showing the notification. Notifications received
+     * while no client is bound are buffered, and delivered to the client that next binds,
+     * through the batch listener if batching is enabled. See BluetoothLeService.startStreaming
+     */
+    public void startStreaming(int notificationId, Notification notification) {
+        whenBound(() -> leService.startStreaming(notificationId, notification, connectionList));
+    }
+
+    public void stopStreaming() {
+        whenBound(() -> leService.stopStreaming());
+    }
+
+    // Adopts the connections of a streaming service and delivers what it buffered while unbound
+    private void resumeStreaming() {
+        for(LeConnection connection : leService.getStreamingConnections()) {
+            if(!connectionList.contains(connection)) {
+                connectionList.add(connection);
+            }
+            connectionPool.adopt(connection, LeConnectionPool.PRIORITY_NORMAL);
+            connection.removeStateListener(connectionStateListener);
+            connection.addStateListener(connectionStateListener);
+        }
+        NotificationBatcher batcher = notificationBatcher;
+        int count = leService.drainBackgroundBuffer((address, uuid, timestamp, data) -> {
+            LeConnection connection = getConnectionFromAddress(address);
+            if(connection == null) {
+                return;
+            }
+            if(batcher != null) {
+                batcher.add(connection.getDevice(), uuid, data, timestamp);
+            } else {
+                int handle = connection.getUuidTable().handleOf(UUID.fromString(uuid));
+                notificationListener.characteristicNotification(connection, handle, uuid, data, timestamp);
+            }
+        });
+        if(batcher != null) {
+            batcher.flush();
+        }
+        Timber.d("Delivered %d notifications buffered while unbound", count);
+    }
+
+    /**
+     * Hosts services so centrals can connect to this device. Started once the service is bound
+     */
+    public void startGattServer(List<ServerService> services, GattServer.Listener listener) {
+        whenBound(() -> leService.startGattServer(services, listener));
+    }
+
+    public void stopGattServer() {
+        whenBound(() -> leService.stopGattServer());
+    }
+
+    /**
+     * @return The running server, or null if it isn't started
+     */
+    public GattServer getGattServer() {
+        return (leService == null) ? null : leService.getGattServer();
+    }
+
+    /**
+     * Typed listeners for LeEvents posted by this client
+     */
+    public LeEventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    /**
+     * Events are forwarded to EventBus.getDefault() by default, for @Subscribe subscribers.
+     *
+     * @param bus The bus to forward to, or null to only use the typed dispatcher
+     */
+    public void setEventBusBridge(EventBus bus) {
+        eventDispatcher.setEventBus(bus);
+    }
+
+    /**
+     * Connection state changes of every connection as a stream, including errors with no connection.
+     * Subscribers are called on the main thread
+     */
+    public StreamPublisher<LeConnectionEvent> connectionEvents() {
+        return connectionEvents;
+    }
+
     public BluetoothLeService getBleService() {
         return leService;
     }
@@ -64,6 +291,21 @@ public class LeClient {
             Timber.d("onServiceConnected(). componentName:%s", componentName.toString());
             leService = ((BluetoothLeService.LocalBinder) service).getService();
             leService.initialize();
+            leService.setNotificationBatcher(notificationBatcher);
+            leService.setNotificationListener(notificationListener);
+            if(leService.isStreaming()) {
+                resumeStreaming();
+            }
+            if(timeToBindMs == -1) {
+                timeToBindMs = SystemClock.elapsedRealtime() - createdMs;
+            }
+            readyFuture.run();
+
+            List<Runnable> requests = new ArrayList<>(pendingRequests);
+            pendingRequests.clear();
+            for(Runnable request : requests) {
+                request.run();
+            }
         }
 
         @Override
@@ -76,9 +318,7 @@ public class LeClient {
     // Handles various events fired by the Service.
     // ACTION_GATT_CONNECTED: connected to a GATT server.
     // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
     // ACTION_DATA_AVAILABLE: received data as a result of read or notify
-    // ACTION_GATT_NOTIFY: tell device to send data on a specific port
     // ACTION_GATT_WRITE: Finished writing a characteristic
     private final BroadcastReceiver gattUpdateReceiver = new BroadcastReceiver() {
         @Override
@@ -93,21 +333,9 @@ public class LeClient {
             } else if(ACTION_GATT_DISCONNECTED.equals(action)) {
                 updateLeConnectionState(false, connection);
 
-            } else if(ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                if(connection != null) {
-                    int status = intent.getIntExtra(EXTRA_STATUS, BluetoothGatt.GATT_FAILURE);
-                    connection.handleServicesDiscovered(status);
-                    if(status == BluetoothGatt.GATT_SUCCESS && bleListener != null) {
-                        bleListener.servicesDiscovered(connection);
-                    }
-                }
-
             } else if (ACTION_DATA_AVAILABLE.equals(action)) {
                 handleReadCharacteristic(connection, intent);
 
-            } else if(ACTION_GATT_NOTIFY.equals(action)) {
-                handleNotifyCharacteristic(connection, intent);
-
             } else if(ACTION_GATT_WRITE.equals(action)) {
                 handleWriteComplete(connection, intent);
 
@@ -124,18 +352,33 @@ public class LeClient {
             connection.disconnectAndCloseGatt();
             connectLeDelayed(connection);
         } else {
+            for(LeConnection c : connectionList) {
+                connectionPool.release(c);
+            }
             connectionList.clear();
-            bus.post(new LeConnectionEvent(connection, false, true));
+            postConnectionEvent(new LeConnectionEvent(connection, false, true));
             Timber.d("Broadcast the LeConnectionEvent error");
         }
     }
 
-    private void handleNotifyCharacteristic(LeConnection connection, Intent intent) {
-        String uuid = intent.getStringExtra(BluetoothLeService.EXTRA_UUID);
-        byte[] data = intent.getByteArrayExtra(BluetoothLeService.EXTRA_DATA);
+    private final BluetoothLeService.NotificationListener notificationListener = new BluetoothLeService.NotificationListener() {
+        @Override
+        public void characteristicNotification(LeConnection connection, String uuid, byte[] data, long timestamp) {
+            characteristicNotification(connection, UuidTable.NO_HANDLE, uuid, data, timestamp);
+        }
 
-        if(bleListener != null) {
-            bleListener.characteristicNotification(connection, uuid, data);
+        @Override
+        public void characteristicNotification(LeConnection connection, int handle, String uuid, byte[] data, long timestamp) {
+            if(bleListener != null) {
+                bleListener.characteristicNotification(connection, handle, uuid, data, timestamp);
+            }
+        }
+    };
+
+    private void handleNotificationBatch(NotificationBatch batch) {
+        LeConnection connection = getConnectionFromDevice(batch.getDevice());
+        if(batchListener != null) {
+            batchListener.characteristicNotifications(connection, batch);
         }
     }
 
@@ -162,9 +405,7 @@ public class LeClient {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_BLUETOOTH_ERROR);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_NOTIFY);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_WRITE);
 
         c.registerReceiver(gattUpdateReceiver, intentFilter);
@@ -173,6 +414,18 @@ public class LeClient {
     }
 
     public void unregisterAndUnbind(Context c) {
+        pendingRequests.clear();
+        if(leService != null) {
+            leService.setNotificationListener(null);
+            leService.setNotificationBatcher(null);
+            if(!leService.isStreaming()) {
+                leService.stopGattServer();
+            }
+        }
+        // A streaming service keeps the connections, don't let them hold on to this client
+        for(LeConnection connection : connectionList) {
+            connection.removeStateListener(connectionStateListener);
+        }
         try {
             c.unregisterReceiver(gattUpdateReceiver);
             c.unbindService(leServiceConnection);
@@ -188,12 +441,19 @@ public class LeClient {
             Timber.d("getConnectionFromDevice tried with null device");
             return null;
         }
+        LeConnection connection = getConnectionFromAddress(device.getAddress());
+        if(connection == null) {
+            Timber.d("unable to find getConnectionFromDevice() %s, %d", device.getAddress(), connectionList.size());
+        }
+        return connection;
+    }
+
+    private LeConnection getConnectionFromAddress(String address) {
         for(LeConnection connection : connectionList) {
-            if(device.getAddress().equals(connection.getDevice().getAddress())) {
+            if(address.equals(connection.getDevice().getAddress())) {
                 return connection;
             }
         }
-        Timber.d("unable to find getConnectionFromDevice() %s, %d", device.getAddress(), connectionList.size());
         return null;
     }
 
@@ -202,19 +462,36 @@ public class LeClient {
         Timber.d("updateLeConnectionState(). is connection null: %s, connected=%b",
                 connection == null, connected);
 
-        if(connection != null) {
-            boolean wasConnected = connection.isConnected();
-            connection.setConnected(connected);
-
-            if(!connected && wasConnected) {
+        if(connection == null) {
+            Timber.d("updateLeConnectionState nonexistent connection. connected:%b", connected);
+        }
+        postConnectionEvent(new LeConnectionEvent(connection, connected));
+    }
 
-                connectionList.remove(connection);
+    // Connection state is driven by the service; this keeps the connection list in step
+    private final LeConnection.StateListener connectionStateListener = (connection, oldState, newState) -> {
+        if(newState == LeConnection.STATE_READY) {
+            if(timeToFirstConnectionMs == -1) {
+                timeToFirstConnectionMs = SystemClock.elapsedRealtime() - createdMs;
             }
+            if(bleListener != null) {
+                bleListener.servicesDiscovered(connection);
+            }
+        } else if(newState == LeConnection.STATE_DISCONNECTED && oldState != LeConnection.STATE_DISCONNECTING) {
+            // Dropped after connecting, or out of retries. Other failed attempts stay listed for
+            // retries, and the pool reclaims their slots if no retry comes
+            if(oldState != LeConnection.STATE_CONNECTING || !connection.shouldRetry()) {
+                forgetConnection(connection);
+            }
+        }
+    };
 
-        } else {
-            Timber.d("updateLeConnectionState nonexistent connection. connected:%b", connected);
+    private void postConnectionEvent(LeConnectionEvent event) {
+        eventDispatcher.post(event);
+        if(event.getLeConnection() != null) {
+            event.getLeConnection().publishConnectionEvent(event);
         }
-        bus.post(new LeConnectionEvent(connection, connected));
+        connectionEvents.emit(event);
     }
 
     public BluetoothDevice getLastConnectedDevice() {
@@ -234,19 +511,53 @@ public class LeClient {
     }
 
     public void connectLeDevice(BluetoothDevice device) {
+        connectLeDevice(device, LeConnectionPool.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Connects when the connection pool has a slot. If the pool is full, an idle connection of
+     * equal or lower priority is evicted, or the device waits for a slot
+     *
+     * @param priority LeConnectionPool.PRIORITY_*, or any other int. Higher is more important
+     * @return The new connection, or null if the service isn't bound yet. In that case the
+     *         device is connected once it is, and the connection is reported through events
+     */
+    public LeConnection connectLeDevice(BluetoothDevice device, int priority) {
         if(leService == null) {
-            Timber.d("BLE Service not available");
-        } else {
-            LeConnection connection = new LeConnection(leService, device);
-            connectLeDelayed(connection);
+            Timber.d("BLE Service not bound yet, connection deferred");
+            pendingRequests.add(() -> connectLeDevice(device, priority));
+            return null;
         }
+        LeConnection connection = new LeConnection(leService, device);
+        connection.addStateListener(connectionStateListener);
+        connectionPool.request(connection, priority);
+        return connection;
+    }
+
+    /**
+     * Limits concurrent connections. See LeConnectionPool
+     */
+    public LeConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    private void forgetConnection(LeConnection connection) {
+        connectionList.remove(connection);
+        connectionPool.release(connection);
     }
 
     public void connectLeDelayed(final LeConnection connection) {
-        connectionList.add(connection);
+        if(!connectionList.contains(connection)) {
+            connectionList.add(connection);
+        }
 
         final Handler handler = new Handler(Looper.getMainLooper());
-        handler.postDelayed(() -> connectLe(connection),120);
+        handler.postDelayed(() -> {
+            // Skip connections forgotten or evicted in the meantime
+            if(connectionList.contains(connection)) {
+                connectLe(connection);
+            }
+        }, 120);
     }
 
     // Abstracted from connectLe(BluetoothDevice) so we can reuse this code for LE reconnection
@@ -255,7 +566,7 @@ public class LeClient {
     private void connectLe(LeConnection connection) {
 
         if(!leService.connect(connection)) {
-            connectionList.remove(connection);
+            forgetConnection(connection);
         }
 
         for(BluetoothDevice device : leService.getConnectedDevices()) {
@@ -275,12 +586,13 @@ public class LeClient {
         }
         LeConnection lastConnection = connectionList.get(connectionList.size()-1);
         lastConnection.disconnectAndCloseGatt();
-        connectionList.remove(lastConnection);
+        forgetConnection(lastConnection);
         Timber.d("successfully disconnected last connection:%s", lastConnection.getName());
     }
 
     public void removeConnection(LeConnection connection) {
         boolean status = connectionList.remove(connection);
+        connectionPool.release(connection);
         Timber.d("removeConnection() success:%s for device:%s", status, connection.getName());
     }
 
@@ -297,7 +609,7 @@ public class LeClient {
             if(connection.getName().equals(name)) {
                 Timber.d("disconnected by name:%s", connection.getName());
                 connection.disconnectAndCloseGatt();
-                connectionList.remove(connection);
+                forgetConnection(connection);
                 return true;
             }
         }
@@ -307,12 +619,37 @@ public class LeClient {
     }
 
     public void disconnectAll() {
+        connectionPool.cancelWaiting();
         for(LeConnection connection : connectionList) {
             connection.disconnectAndCloseGatt();
+            connectionPool.release(connection);
         }
         connectionList.clear();
     }
 
+    /**
+     * Writes the same value to a characteristic on several connections at once, and reports
+     * aggregated completion with per-device latency, failures and skew
+     */
+    public void writeCharacteristic(List<LeConnection> connections, UUID serviceUuid, UUID uuid,
+                                    byte[] data, GroupWriteOperation.Listener listener) {
+        whenBound(() -> leService.queueOperation(new GroupWriteOperation(connections, serviceUuid, uuid, data, listener)));
+    }
+
+    /**
+     * Writes the same value to a characteristic on every connected device
+     */
+    public void writeCharacteristicToAll(UUID serviceUuid, UUID uuid, byte[] data,
+                                         GroupWriteOperation.Listener listener) {
+        List<LeConnection> connected = new ArrayList<>();
+        for(LeConnection connection : connectionList) {
+            if(connection.isConnected()) {
+                connected.add(connection);
+            }
+        }
+        writeCharacteristic(connected, serviceUuid, uuid, data, listener);
+    }
+
     public boolean isConnected() {
         if(leService == null) {
             Timber.d("BLE Service null!");
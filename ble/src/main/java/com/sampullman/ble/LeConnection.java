@@ -1,49 +1,478 @@
 package com.sampullman.ble;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
+import android.content.Intent;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
+import com.sampullman.ble.event.LeConnectionEvent;
+import com.sampullman.ble.operation.ConnectOperation;
+import com.sampullman.ble.operation.LeOperation;
+import com.sampullman.ble.operation.PipelineOperation;
+import com.sampullman.ble.operation.ReliableWriteOperation;
+import com.sampullman.ble.stream.CharacteristicValue;
+import com.sampullman.ble.stream.SourcePublisher;
+import com.sampullman.ble.stream.StreamPublisher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import timber.log.Timber;
 
+/**
+ * A connection to one device. The connection moves through the states
+ * DISCONNECTED -> CONNECTING -> CONNECTED -> DISCOVERING -> READY -> DISCONNECTING -> DISCONNECTED,
+ * as allowed by TRANSITIONS. State changes happen on the main thread, and timeouts and
+ * retries are scheduled on the main Handler. Requests made before the connection is READY
+ * are held and queued once services are discovered.
+ */
 public class LeConnection {
     private static final int MAX_RETRIES = 4;
+    private static final int DISCOVERY_TRIES = 3;
+    private static final long CONNECT_TIMEOUT_MS = 10000;
+    private static final long DISCOVERY_TIMEOUT_MS = 10000;
+    private static final long DISCOVERY_RETRY_MS = 1000;
+    public static final int DEFAULT_MTU = 23;
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCOVERING = 3;
+    public static final int STATE_READY = 4;
+    public static final int STATE_DISCONNECTING = 5;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Allowed next states, as bit masks indexed by the current state
+    private static final int[] TRANSITIONS = {
+            /* DISCONNECTED  */ 1 << STATE_CONNECTING,
+            /* CONNECTING    */ 1 << STATE_CONNECTED | 1 << STATE_DISCONNECTING | 1 << STATE_DISCONNECTED,
+            /* CONNECTED     */ 1 << STATE_DISCOVERING | 1 << STATE_DISCONNECTING | 1 << STATE_DISCONNECTED,
+            /* DISCOVERING   */ 1 << STATE_READY | 1 << STATE_DISCONNECTING | 1 << STATE_DISCONNECTED,
+            /* READY         */ 1 << STATE_DISCOVERING | 1 << STATE_DISCONNECTING | 1 << STATE_DISCONNECTED,
+            /* DISCONNECTING */ 1 << STATE_DISCONNECTED
+    };
+
+    /**
+     * Called on the main thread after the connection changes state
+     */
+    public interface StateListener {
+        void connectionStateChanged(LeConnection connection, int oldState, int newState);
+    }
 
     private final BluetoothDevice device;
     public BluetoothGatt gatt;
     private int discoveryTries = 0, connectionTries = 0;
-    private boolean servicesDiscovered = false;
     public final BluetoothLeService leService;
     private int aclConnections = 0;
-    private int connectionState = STATE_DISCONNECTED;
+    private volatile int connectionState = STATE_DISCONNECTED;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<StateListener> stateListeners = new CopyOnWriteArrayList<>();
+    private final List<Runnable> pendingRequests = new ArrayList<>();
+    private long connectStartedAt = 0, timeToReadyMs = -1;
+    // When the last connect attempt failed, -1 once another attempt is queued
+    private volatile long connectFailedMs = -1;
+    private volatile long lastActivityMs = SystemClock.elapsedRealtime();
+    private final Runnable connectTimeoutTask = this::connectTimeout;
+    private final Runnable discoveryTask = this::discoverServices;
+    private final Runnable discoveryTimeoutTask = this::discoveryTimeout;
+    private final NotificationQueue notificationQueue;
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
+    private final SubscriptionSet subscriptions = new SubscriptionSet(this);
+    private final PollingScheduler pollingScheduler = new PollingScheduler(this);
+    private final CharacteristicCache cache = new CharacteristicCache(this);
+    private final Map<String, ClockOffsetEstimator> clockEstimators = new ConcurrentHashMap<>();
+    private int preferredPhyMask = BluetoothDevice.PHY_LE_1M_MASK | BluetoothDevice.PHY_LE_2M_MASK;
+    private int phyOptions = BluetoothDevice.PHY_OPTION_NO_PREFERRED;
+    private volatile int txPhy = 0, rxPhy = 0;
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile L2capChannel channel;
+    private volatile UuidTable uuidTable = UuidTable.EMPTY;
+    private final Map<String, SourcePublisher<CharacteristicValue>> notificationPublishers = new HashMap<>();
+    private final SourcePublisher<LeConnectionEvent> connectionEvents = new SourcePublisher<>();
 
     public LeConnection(BluetoothLeService leService, BluetoothDevice device) {
         this.device = device;
         this.leService = leService;
+        this.notificationQueue = leService.createNotificationQueue();
+    }
+
+    /**
+     * Buffers notifications between the GATT callback thread and the app. Exposes drop counters
+     */
+    public NotificationQueue getNotificationQueue() {
+        return notificationQueue;
+    }
+
+    /**
+     * Declares which characteristics should notify or indicate. Restored after reconnect
+     */
+    public SubscriptionSet getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * Periodic reads of this connection's characteristics. Polling runs while services are discovered
+     */
+    public PollingScheduler getPollingScheduler() {
+        return pollingScheduler;
+    }
+
+    /**
+     * Integer handles for the characteristics found by discovery, as passed to
+     * BleListener's handle callback. Empty until the connection is first READY
+     */
+    public UuidTable getUuidTable() {
+        return uuidTable;
+    }
+
+    /**
+     * Last known characteristic values, updated by reads, notifications and writes
+     */
+    public CharacteristicCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Completes from the cache if the value is no older than maxAgeMs, otherwise reads it
+     */
+    public void readCharacteristic(UUID serviceUuid, UUID characteristic, long maxAgeMs,
+                                   CharacteristicCache.Callback callback) {
+        cache.read(serviceUuid, characteristic, maxAgeMs, callback);
+    }
+
+    /**
+     * Called from the GATT callback thread when a characteristic read completes or fails
+     */
+    void readComplete(String uuid, byte[] data, int status) {
+        touch();
+        pollingScheduler.readComplete(uuid);
+        cache.readComplete(uuid, data, status == BluetoothGatt.GATT_SUCCESS);
+    }
+
+    /**
+     * Called from the GATT callback thread when a characteristic write completes
+     */
+    void writeComplete(String uuid, byte[] data) {
+        touch();
+        cache.update(uuid, data);
+    }
+
+    /**
+     * Estimates the device's clock from a sequence counter in a characteristic's notifications,
+     * so notification times can be aligned across devices
+     *
+     * @param counterBits Width of the device counter, used to unwrap rollovers
+     */
+    public ClockOffsetEstimator setClockSource(UUID uuid, ClockOffsetEstimator.SequenceExtractor extractor,
+                                               int counterBits) {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator(extractor, counterBits);
+        clockEstimators.put(uuid.toString(), estimator);
+        return estimator;
+    }
+
+    /**
+     * @return The clock estimator for a characteristic, or null if none was set
+     */
+    public ClockOffsetEstimator getClockEstimator(UUID uuid) {
+        return clockEstimators.get(uuid.toString());
+    }
+
+    ClockOffsetEstimator getClockEstimator(String uuid) {
+        return clockEstimators.get(uuid);
+    }
+
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the PHYs to request on connection (API 26+). Defaults to LE 2M when the local adapter
+     * supports it, falling back to 1M if the peer doesn't. Takes effect immediately if connected
+     *
+     * @param phyMask BluetoothDevice.PHY_LE_*_MASK bits
+     * @param phyOptions BluetoothDevice.PHY_OPTION_*, used with coded PHY
+     */
+    public void setPreferredPhy(int phyMask, int phyOptions) {
+        this.preferredPhyMask = phyMask;
+        this.phyOptions = phyOptions;
+        if(isConnected()) {
+            requestPreferredPhy();
+        }
+    }
+
+    /**
+     * @return The preferred PHYs that the local adapter supports
+     */
+    public int getConnectPhyMask() {
+        int mask = preferredPhyMask & leService.getSupportedPhyMask();
+        return (mask == 0) ? BluetoothDevice.PHY_LE_1M_MASK : mask;
+    }
+
+    /**
+     * @return The current transmit PHY, BluetoothDevice.PHY_LE_*, or 0 if unknown
+     */
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    /**
+     * @return The current receive PHY, BluetoothDevice.PHY_LE_*, or 0 if unknown
+     */
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    @SuppressLint("MissingPermission")
+    @TargetApi(26)
+    private void requestPreferredPhy() {
+        if(gatt == null || android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.O) {
+            return;
+        }
+        int mask = getConnectPhyMask();
+        if(mask != BluetoothDevice.PHY_LE_1M_MASK) {
+            gatt.setPreferredPhy(mask, mask, phyOptions);
+        } else {
+            gatt.readPhy();
+        }
+    }
+
+    /**
+     * Called from the GATT callback thread with the result of a PHY update or read
+     */
+    void phyUpdated(int txPhy, int rxPhy, int status) {
+        if(status != BluetoothGatt.GATT_SUCCESS) {
+            Timber.w("PHY update failed: %d, staying on tx:%d rx:%d", status, this.txPhy, this.rxPhy);
+            return;
+        }
+        if(rxPhy == BluetoothDevice.PHY_LE_1M && (getConnectPhyMask() & BluetoothDevice.PHY_LE_2M_MASK) != 0) {
+            Timber.d("Peer declined LE 2M PHY, using 1M");
+        }
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+        metrics.phyChanged(rxPhy);
+    }
+
+    /**
+     * @return The negotiated ATT MTU, DEFAULT_MTU until an MTU exchange succeeds
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Called from the GATT callback thread with the result of an MTU exchange
+     */
+    void mtuChanged(int mtu, int status) {
+        if(status == BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+        }
+    }
+
+    /**
+     * Opens a stream over an L2CAP channel, falling back to GATT when L2CAP isn't available.
+     * The channel opens once the connection is READY and reopens after reconnects.
+     * Replaces any channel opened before
+     *
+     * @param psm Protocol/Service Multiplexer the device listens on, or 0 to always use GATT
+     * @param secure True for an encrypted channel, which requires bonding
+     * @param fallback Characteristics to use instead of L2CAP, or null for no fallback
+     */
+    public L2capChannel openL2capChannel(int psm, boolean secure, L2capChannel.GattFallback fallback,
+                                         L2capChannel.Listener listener) {
+        L2capChannel old = channel;
+        if(old != null) {
+            old.close();
+        }
+        L2capChannel newChannel = new L2capChannel(this, psm, secure, fallback, listener,
+                L2capChannel.DEFAULT_BUFFER_SIZE);
+        channel = newChannel;
+        handler.post(newChannel::start);
+        return newChannel;
+    }
+
+    /**
+     * @return The channel opened with openL2capChannel, or null
+     */
+    public L2capChannel getL2capChannel() {
+        return channel;
+    }
+
+    /**
+     * Notifications from one characteristic as a demand-driven stream. Subscribers are called
+     * on the main thread, and must still enable notifications with requestNotification
+     */
+    public StreamPublisher<CharacteristicValue> notifications(UUID uuid) {
+        String key = uuid.toString();
+        SourcePublisher<CharacteristicValue> publisher = notificationPublishers.get(key);
+        if(publisher == null) {
+            publisher = new SourcePublisher<>();
+            notificationPublishers.put(key, publisher);
+        }
+        return publisher;
+    }
+
+    /**
+     * Connection state changes of this connection as a stream. Subscribers are called on the main thread
+     */
+    public StreamPublisher<LeConnectionEvent> connectionEvents() {
+        return connectionEvents;
+    }
+
+    void publishNotification(String uuid, byte[] data, long timestamp) {
+        touch();
+        L2capChannel channel = this.channel;
+        if(channel != null) {
+            channel.notificationReceived(uuid, data);
+        }
+        SourcePublisher<CharacteristicValue> publisher = notificationPublishers.get(uuid);
+        if(publisher != null && publisher.hasSubscribers()) {
+            publisher.emit(new CharacteristicValue(this, uuid, data, timestamp));
+        }
+    }
+
+    void publishConnectionEvent(LeConnectionEvent event) {
+        connectionEvents.emit(event);
+    }
+
+    /**
+     * @return One of the STATE_* constants
+     */
+    public int getState() {
+        return connectionState;
+    }
+
+    public static String stateName(int state) {
+        switch(state) {
+            case STATE_DISCONNECTED: return "DISCONNECTED";
+            case STATE_CONNECTING: return "CONNECTING";
+            case STATE_CONNECTED: return "CONNECTED";
+            case STATE_DISCOVERING: return "DISCOVERING";
+            case STATE_READY: return "READY";
+            case STATE_DISCONNECTING: return "DISCONNECTING";
+            default: return "UNKNOWN";
+        }
     }
 
+    /**
+     * @return True while a GATT connection is up, whether or not services are discovered
+     */
     public boolean isConnected() {
-        return connectionState == STATE_CONNECTED;
+        int state = connectionState;
+        return state == STATE_CONNECTED || state == STATE_DISCOVERING || state == STATE_READY;
     }
 
     public boolean isConnecting() {
         return connectionState == STATE_CONNECTING;
     }
 
+    /**
+     * @return True once services are discovered and requests are sent immediately
+     */
+    public boolean isReady() {
+        return connectionState == STATE_READY;
+    }
+
+    /**
+     * @return SystemClock.elapsedRealtime of the last request, read, write or notification
+     */
+    public long getLastActivityMs() {
+        return lastActivityMs;
+    }
+
+    private void touch() {
+        lastActivityMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return Time from the last connection attempt to READY, or -1 if it hasn't been reached
+     */
+    public long getTimeToReadyMs() {
+        return timeToReadyMs;
+    }
+
+    public void addStateListener(StateListener listener) {
+        stateListeners.add(listener);
+    }
+
+    /**
+     * Adds a listener that is only called on entering one state
+     */
+    public StateListener addStateListener(final int state, final StateListener listener) {
+        StateListener filtered = (connection, oldState, newState) -> {
+            if(newState == state) {
+                listener.connectionStateChanged(connection, oldState, newState);
+            }
+        };
+        stateListeners.add(filtered);
+        return filtered;
+    }
+
+    public void removeStateListener(StateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    static boolean canTransition(int oldState, int newState) {
+        return (TRANSITIONS[oldState] & (1 << newState)) != 0;
+    }
+
+    /**
+     * Moves to a new state if TRANSITIONS allows it
+     *
+     * @return False if the transition isn't allowed, or the connection is already in that state
+     */
+    private boolean transition(int newState) {
+        int oldState;
+        synchronized(this) {
+            oldState = connectionState;
+            if(!canTransition(oldState, newState)) {
+                if(oldState != newState) {
+                    Timber.w("Ignoring transition %s -> %s", stateName(oldState), stateName(newState));
+                }
+                return false;
+            }
+            connectionState = newState;
+        }
+        Timber.d("%s: %s -> %s", getName(), stateName(oldState), stateName(newState));
+        if(oldState == STATE_CONNECTING) {
+            handler.removeCallbacks(connectTimeoutTask);
+            if(newState == STATE_DISCONNECTED) {
+                connectFailedMs = SystemClock.elapsedRealtime();
+            }
+        } else if(oldState == STATE_DISCOVERING) {
+            handler.removeCallbacks(discoveryTask);
+            handler.removeCallbacks(discoveryTimeoutTask);
+        }
+        for(StateListener listener : stateListeners) {
+            listener.connectionStateChanged(this, oldState, newState);
+        }
+        return true;
+    }
+
+    /**
+     * @return SystemClock.elapsedRealtime at which the last connect attempt failed, or -1 if it
+     *         didn't or another attempt has been queued since
+     */
+    long getConnectFailedMs() {
+        return connectFailedMs;
+    }
+
+    void connectQueued() {
+        connectFailedMs = -1;
+    }
+
     public boolean shouldRetry() {
         return connectionTries <= MAX_RETRIES;
     }
 
     public void setConnected(boolean connected) {
-        // Attempts to discover services after successful connection.
         if(connected && gatt != null) {
             connected();
         } else {
@@ -51,48 +480,142 @@ public class LeConnection {
         }
     }
 
-    @SuppressLint("MissingPermission")
+    /**
+     * Called on the main thread when the GATT connection is established. Starts service discovery
+     */
     public void connected() {
-        this.connectionState = STATE_CONNECTED;
-        discoveryTries = 3;
-        boolean starting = gatt.discoverServices(); // FIXME gatt is null when discoverServices is called during RSSI
-        Timber.i("Attempting to start service discovery: %b", starting);
+        if(gatt == null || !transition(STATE_CONNECTED)) {
+            return;
+        }
+        leService.getConnectionParameterManager().track(this);
+        metrics.phyChanged(BluetoothDevice.PHY_LE_1M);
+        requestPreferredPhy();
+        discoveryTries = DISCOVERY_TRIES;
+        transition(STATE_DISCOVERING);
+        discoverServices();
     }
 
+    /**
+     * Called on the main thread when the GATT connection drops
+     */
     public void disconnected() {
+        closeGatt();
+        connectionLost();
+    }
+
+    private void connectionLost() {
+        // Requests made for this connection don't carry over to the next one
+        synchronized(pendingRequests) {
+            pendingRequests.clear();
+        }
+        leService.getConnectionParameterManager().untrack(this);
+        txPhy = rxPhy = 0;
+        mtu = DEFAULT_MTU;
+        metrics.phyChanged(0);
+        subscriptions.reset();
+        pollingScheduler.stop();
+        cache.connectionLost();
         setAclConnections(0);
-        servicesDiscovered = false;
-        disconnectAndCloseGatt();
-        this.connectionState = STATE_DISCONNECTED;
+        transition(STATE_DISCONNECTED);
     }
 
-    @SuppressLint("MissingPermission")
+    /**
+     * Pins the connection to CONNECTION_PRIORITY_HIGH. See setConnectionPriority
+     */
     public void highPriority() {
-        gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        setConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    }
+
+    /**
+     * Fixes the connection priority instead of adapting it to load.
+     * Connection priority is adapted by ConnectionParameterManager unless pinned
+     *
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_*, or -1 to resume adapting
+     */
+    public void setConnectionPriority(int priority) {
+        leService.getConnectionParameterManager().pin(this, priority);
     }
 
     @SuppressLint("MissingPermission")
-    void handleServicesDiscovered(int status) {
-        if (status == BluetoothGatt.GATT_SUCCESS) {
+    private void discoverServices() {
+        if(connectionState != STATE_DISCOVERING) {
+            return;
+        }
+        if(gatt == null || !gatt.discoverServices()) {
+            Timber.w("Unable to start service discovery, gatt null=%b", gatt == null);
+            retryDiscovery();
+            return;
+        }
+        Timber.i("Started service discovery");
+        handler.postDelayed(discoveryTimeoutTask, DISCOVERY_TIMEOUT_MS);
+    }
 
-            if(!servicesDiscovered) {
-                servicesDiscovered();
-            }
+    private void discoveryTimeout() {
+        Timber.w("Service discovery timed out");
+        retryDiscovery();
+    }
 
-        } else if(discoveryTries-- >= 0) {
+    private void retryDiscovery() {
+        handler.removeCallbacks(discoveryTimeoutTask);
+        if(discoveryTries-- > 0 && gatt != null) {
+            handler.postDelayed(discoveryTask, DISCOVERY_RETRY_MS);
+        } else {
+            fail("Service discovery failed");
+        }
+    }
+
+    /**
+     * Called on the main thread with the result of service discovery
+     */
+    void handleServicesDiscovered(int status) {
+        if(connectionState != STATE_DISCOVERING) {
+            return;
+        }
+        if(status == BluetoothGatt.GATT_SUCCESS) {
+            servicesDiscovered();
+        } else {
             Timber.w("onServicesDiscovered received: %d", status);
-            try {
-                Thread.sleep(1800);
-            } catch (InterruptedException e) {
-                Timber.e("onServicesDiscovered sleep fail %s", e.getMessage());
-            }
-            gatt.discoverServices();
+            retryDiscovery();
         }
     }
 
     public void servicesDiscovered() {
         Timber.d("Services discovered %d", System.identityHashCode(this));
-        servicesDiscovered = true;
+        if(!transition(STATE_READY)) {
+            return;
+        }
+        timeToReadyMs = SystemClock.elapsedRealtime() - connectStartedAt;
+        if(gatt != null) {
+            uuidTable = uuidTable.extend(gatt.getServices());
+        }
+        runPendingRequests();
+        if(subscriptions.hasSubscriptions()) {
+            subscriptions.apply();
+        }
+        pollingScheduler.start();
+    }
+
+    private void connectTimeout() {
+        Timber.w("Connection to %s timed out", getName());
+        // The connect operation never completes by itself if the stack doesn't call back
+        LeOperation operation = leService.currentOperation();
+        if(operation instanceof ConnectOperation && ((ConnectOperation) operation).getConnection() == this) {
+            leService.operationComplete();
+        }
+        fail("Connection timed out");
+    }
+
+    // Gives up on the connection and reports it as disconnected
+    private void fail(String reason) {
+        Timber.e("%s: %s", getName(), reason);
+        boolean wasConnected = isConnected();
+        closeGatt();
+        connectionLost();
+        Intent intent = new Intent(BluetoothLeService.ACTION_GATT_DISCONNECTED);
+        intent.putExtra(BluetoothLeService.ACTION_GATT_DISCONNECTED, device);
+        intent.putExtra(BluetoothLeService.EXTRA_STATUS,
+                wasConnected ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+        leService.sendBroadcast(intent);
     }
 
     /**
@@ -102,19 +625,33 @@ public class LeConnection {
     @SuppressLint("MissingPermission")
     public void disconnectAndCloseGatt() {
         Timber.d("le connection disconnected and closed: %s, gatt null=%b", device.getName(), gatt==null);
-        if(gatt != null) {
-            new Handler(Looper.getMainLooper()).post(() -> {
-                try {
-                    gatt.disconnect();
-                    gatt.close();
-                    gatt = null;
-                    try { Thread.sleep(300); } catch(Exception e) {}
-                } catch(NullPointerException e) {
-                    // gatt.close() can result in NPE. TODO -- figure out a better solution here
-                    Timber.d(e, "disconnectAndCloseGatt NPE");
-                    gatt = null;
-                }
-            });
+        synchronized(pendingRequests) {
+            pendingRequests.clear();
+        }
+        if(gatt == null) {
+            connectionLost();
+            return;
+        }
+        transition(STATE_DISCONNECTING);
+        handler.post(() -> {
+            closeGatt();
+            connectionLost();
+        });
+    }
+
+    // Main thread. No state callback follows close(), so callers move to DISCONNECTED themselves
+    @SuppressLint("MissingPermission")
+    private void closeGatt() {
+        BluetoothGatt closing = gatt;
+        gatt = null;
+        if(closing != null) {
+            try {
+                closing.disconnect();
+                closing.close();
+            } catch(NullPointerException e) {
+                // gatt.close() can result in NPE. TODO -- figure out a better solution here
+                Timber.d(e, "disconnectAndCloseGatt NPE");
+            }
         }
     }
 
@@ -138,28 +675,79 @@ public class LeConnection {
     public void setConnecting(BluetoothGatt gatt) {
         connectionTries += 1;
         this.gatt = gatt;
-        this.connectionState = STATE_CONNECTING;
+        if(transition(STATE_CONNECTING)) {
+            connectStartedAt = SystemClock.elapsedRealtime();
+            lastActivityMs = connectStartedAt;
+            timeToReadyMs = -1;
+            handler.postDelayed(connectTimeoutTask, CONNECT_TIMEOUT_MS);
+        }
+    }
+
+    // Sends a request now if the connection is READY, otherwise when it becomes READY
+    private void whenReady(Runnable request) {
+        touch();
+        synchronized(pendingRequests) {
+            if(connectionState != STATE_READY) {
+                pendingRequests.add(request);
+                return;
+            }
+        }
+        request.run();
+    }
+
+    private void runPendingRequests() {
+        List<Runnable> requests;
+        synchronized(pendingRequests) {
+            requests = new ArrayList<>(pendingRequests);
+            pendingRequests.clear();
+        }
+        for(Runnable request : requests) {
+            request.run();
+        }
     }
 
     public void requestNotification(UUID serviceUuid, UUID uuid, boolean on) {
-        leService.requestNotification(gatt, serviceUuid, uuid, on);
+        whenReady(() -> leService.requestNotification(gatt, serviceUuid, uuid, on));
     }
 
     public void requestIndication(UUID serviceUuid, UUID uuid) {
-        leService.requestIndication(gatt, serviceUuid, uuid);
+        whenReady(() -> leService.requestIndication(gatt, serviceUuid, uuid));
     }
 
     public void readCharacteristic(UUID serviceUuid, UUID characteristic) {
-        leService.readCharacteristic(gatt, serviceUuid, characteristic);
+        whenReady(() -> leService.readCharacteristic(gatt, serviceUuid, characteristic));
     }
 
     public void writeCharacteristic(UUID serviceUuid, UUID characteristic, byte[] data) {
-        leService.writeCharacteristic(gatt, serviceUuid, characteristic, data);
+        whenReady(() -> leService.writeCharacteristic(gatt, serviceUuid, characteristic, data));
+    }
+
+    /**
+     * Creates a reliable write transaction on this connection. Add writes to it, then
+     * pass it to queueOperation. The transaction is bound to the current GATT client, so
+     * create it once the connection is READY
+     */
+    public ReliableWriteOperation newTransaction(ReliableWriteOperation.Listener listener) {
+        return new ReliableWriteOperation(gatt, listener);
+    }
+
+    /**
+     * Creates a pipeline of steps that runs as one operation. Add steps, then pass it to queueOperation
+     */
+    public PipelineOperation newPipeline(PipelineOperation.Listener listener) {
+        return new PipelineOperation(this, listener);
+    }
+
+    /**
+     * Queues an operation once the connection is READY
+     */
+    public void queueOperation(LeOperation operation) {
+        whenReady(() -> leService.queueOperation(operation));
     }
 
     @SuppressLint("MissingPermission")
     @Override
     public String toString() {
-        return "LeConnection name:" + device.getName() + ", connectionState:" + connectionState;
+        return "LeConnection name:" + device.getName() + ", connectionState:" + stateName(connectionState);
     }
 }
\ No newline at end of file
@@ -0,0 +1,270 @@
+package com.sampullman.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Limits the number of concurrent connections, since Android supports only about 7.
+ * Connections beyond the capacity wait, highest priority first. A waiting connection takes
+ * the slot of a READY connection of equal or lower priority that has been idle for
+ * idleTimeoutMs, evicting the least recently active, lowest priority connection first.
+ * Slots of connections that failed to connect and aren't being retried are reclaimed first.
+ * Used from the main thread.
+ */
+public class LeConnectionPool {
+    public static final int DEFAULT_CAPACITY = 7;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30000;
+    // Longer than LeClient's retry delay, so a failed connection about to retry keeps its slot
+    private static final long RECLAIM_DELAY_MS = 1000;
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    /**
+     * Starts and stops connections on behalf of the pool
+     */
+    interface Connector {
+        void connect(LeConnection connection);
+        void evict(LeConnection connection);
+    }
+
+    private static class Slot {
+        final LeConnection connection;
+        final int priority;
+
+        Slot(LeConnection connection, int priority) {
+            this.connection = connection;
+            this.priority = priority;
+        }
+    }
+
+    private final Connector connector;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Slot> active = new ArrayList<>();
+    // Highest priority first, then in request order
+    private final List<Slot> waiting = new ArrayList<>();
+    private int capacity = DEFAULT_CAPACITY;
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private int evictionCount = 0;
+    private final long createdMs = now();
+    private long usedSlotMs = 0, usageChangedMs = createdMs;
+    private final Runnable idleCheck = this::checkIdle;
+
+    LeConnectionPool(Connector connector) {
+        this.connector = connector;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Pool capacity must be positive");
+        }
+        updateUsage();
+        this.capacity = capacity;
+        admitWaiting();
+    }
+
+    /**
+     * @param idleTimeoutMs Time without activity after which a connection may give up its slot
+     */
+    public synchronized void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return Average fraction of slots in use since the pool was created
+     */
+    public synchronized double getSlotUtilization() {
+        updateUsage();
+        long elapsed = now() - createdMs;
+        return (elapsed == 0) ? 0 : (double) usedSlotMs / (elapsed * capacity);
+    }
+
+    /**
+     * @return The priority the connection was requested with, or PRIORITY_NORMAL if it isn't pooled
+     */
+    public synchronized int getPriority(LeConnection connection) {
+        Slot slot = find(active, connection);
+        if(slot == null) {
+            slot = find(waiting, connection);
+        }
+        return (slot == null) ? PRIORITY_NORMAL : slot.priority;
+    }
+
+    /**
+     * Connects now if a slot is free or can be freed, otherwise waits for one
+     *
+     * @return True if the connection was started
+     */
+    synchronized boolean request(LeConnection connection, int priority) {
+        Slot slot = new Slot(connection, priority);
+        if(active.size() < capacity || evictFor(slot)) {
+            admit(slot);
+            return true;
+        }
+        int index = 0;
+        while(index < waiting.size() && waiting.get(index).priority >= priority) {
+            index += 1;
+        }
+        waiting.add(index, slot);
+        Timber.d("Pool full, %s waiting with priority %d", connection.getName(), priority);
+        scheduleIdleCheck();
+        return false;
+    }
+
+    /**
+     * Gives a slot to a connection that is already connected, such as one kept by the service
+     * while the client was unbound. The pool may go over capacity until slots are released
+     */
+    synchronized void adopt(LeConnection connection, int priority) {
+        if(find(active, connection) != null) {
+            return;
+        }
+        Slot waitingSlot = find(waiting, connection);
+        if(waitingSlot != null) {
+            waiting.remove(waitingSlot);
+        }
+        Slot slot = new Slot(connection, priority);
+        updateUsage();
+        active.add(slot);
+    }
+
+    /**
+     * Frees a connection's slot, or stops it waiting for one
+     */
+    synchronized void release(LeConnection connection) {
+        Slot slot = find(active, connection);
+        if(slot != null) {
+            updateUsage();
+            active.remove(slot);
+            admitWaiting();
+        } else {
+            slot = find(waiting, connection);
+            if(slot != null) {
+                waiting.remove(slot);
+            }
+        }
+    }
+
+    synchronized void cancelWaiting() {
+        waiting.clear();
+        handler.removeCallbacks(idleCheck);
+    }
+
+    private void admit(Slot slot) {
+        updateUsage();
+        active.add(slot);
+        connector.connect(slot.connection);
+    }
+
+    private void admitWaiting() {
+        while(!waiting.isEmpty() && active.size() < capacity) {
+            admit(waiting.remove(0));
+        }
+    }
+
+    // Evicts the idle connection that matters least, if one may give way to the slot
+    private boolean evictFor(Slot slot) {
+        long now = now();
+        if(reclaimFailed(now)) {
+            return true;
+        }
+        Slot victim = null;
+        for(Slot candidate : active) {
+            LeConnection c = candidate.connection;
+            if(candidate.priority > slot.priority || !c.isReady()
+                    || now - c.getLastActivityMs() < idleTimeoutMs) {
+                continue;
+            }
+            if(victim == null || candidate.priority < victim.priority
+                    || (candidate.priority == victim.priority
+                        && c.getLastActivityMs() < victim.connection.getLastActivityMs())) {
+                victim = candidate;
+            }
+        }
+        if(victim == null) {
+            return false;
+        }
+        Timber.d("Evicting idle %s for %s", victim.connection.getName(), slot.connection.getName());
+        updateUsage();
+        active.remove(victim);
+        evictionCount += 1;
+        connector.evict(victim.connection);
+        return true;
+    }
+
+    // Frees the slot of a connection that failed and isn't being retried, whatever its priority
+    private boolean reclaimFailed(long now) {
+        for(Slot candidate : active) {
+            LeConnection c = candidate.connection;
+            long failedMs = c.getConnectFailedMs();
+            if(c.getState() == LeConnection.STATE_DISCONNECTED && failedMs >= 0 && now - failedMs >= RECLAIM_DELAY_MS) {
+                Timber.d("Reclaiming slot of failed connection %s", c.getName());
+                updateUsage();
+                active.remove(candidate);
+                connector.evict(c);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkIdle() {
+        synchronized(this) {
+            while(!waiting.isEmpty() && active.size() >= capacity && evictFor(waiting.get(0))) {
+                admit(waiting.remove(0));
+            }
+            admitWaiting();
+        }
+        scheduleIdleCheck();
+    }
+
+    private synchronized void scheduleIdleCheck() {
+        handler.removeCallbacks(idleCheck);
+        if(!waiting.isEmpty()) {
+            handler.postDelayed(idleCheck, Math.max(idleTimeoutMs / 4, 1000));
+        }
+    }
+
+    private void updateUsage() {
+        long now = now();
+        usedSlotMs += (now - usageChangedMs) * Math.min(active.size(), capacity);
+        usageChangedMs = now;
+    }
+
+    // Overridden by tests to control time
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private static Slot find(List<Slot> slots, LeConnection connection) {
+        for(Slot slot : slots) {
+            if(slot.connection == connection) {
+                return slot;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,80 @@
+package com.sampullman.ble;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Arrays;
+
+/**
+ * A run of notifications from one characteristic on one device, packed into a single
+ * contiguous buffer. Packet i occupies data[getOffset(i), getOffset(i) + getLength(i))
+ * and was received at getTimestamp(i) (SystemClock.elapsedRealtimeNanos)
+ */
+public class NotificationBatch {
+    private final BluetoothDevice device;
+    private final String uuid;
+    private final byte[] data;
+    private final int[] offsets;
+    private final long[] timestamps;
+    private final int count;
+    private final int size;
+
+    NotificationBatch(BluetoothDevice device, String uuid, byte[] data, int[] offsets,
+                      long[] timestamps, int count, int size) {
+        this.device = device;
+        this.uuid = uuid;
+        this.data = data;
+        this.offsets = offsets;
+        this.timestamps = timestamps;
+        this.count = count;
+        this.size = size;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    /**
+     * @return Number of packets in the batch
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return Total payload bytes in the batch
+     */
+    public int getByteCount() {
+        return size;
+    }
+
+    /**
+     * The backing buffer. Only the first getByteCount() bytes are valid
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    public int getLength(int index) {
+        int end = (index + 1 < count) ? offsets[index + 1] : size;
+        return end - offsets[index];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * Copies a single packet out of the batch
+     */
+    public byte[] getPacket(int index) {
+        return Arrays.copyOfRange(data, getOffset(index), getOffset(index) + getLength(index));
+    }
+}
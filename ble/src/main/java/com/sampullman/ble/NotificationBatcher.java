@@ -0,0 +1,156 @@
+package com.sampullman.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Accumulates notifications per device and characteristic, and hands them to a listener
+ * in batches instead of one broadcast per packet.
+ * A batch is flushed when it reaches maxPackets or maxBytes, when its oldest packet is
+ * older than maxLatencyMs, or when flush() is called by the consumer.
+ * Batches are delivered on the main thread.
+ */
+public class NotificationBatcher {
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Accumulator> accumulators = new HashMap<>();
+    private final int maxPackets;
+    private final int maxBytes;
+    private final long maxLatencyMs;
+    private final Listener listener;
+
+    public interface Listener {
+        void notificationBatch(NotificationBatch batch);
+    }
+
+    public NotificationBatcher(int maxPackets, int maxBytes, long maxLatencyMs, Listener listener) {
+        if(maxPackets < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Batch limits must be positive");
+        }
+        this.maxPackets = maxPackets;
+        this.maxBytes = maxBytes;
+        this.maxLatencyMs = maxLatencyMs;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a notification to its batch. Called as connection notification queues are drained
+     */
+    public synchronized void add(BluetoothDevice device, String uuid, byte[] data, long timestamp) {
+        if(data == null) {
+            data = new byte[0];
+        }
+        String key = device.getAddress() + uuid;
+        Accumulator acc = accumulators.get(key);
+        if(acc == null) {
+            acc = new Accumulator(device, uuid);
+            accumulators.put(key, acc);
+        }
+        // Keep the buffer contiguous; start a new batch if this packet won't fit
+        if(acc.count > 0 && acc.size + data.length > maxBytes) {
+            acc.flush();
+        }
+        acc.append(data, timestamp);
+
+        if(acc.count >= maxPackets || acc.size >= maxBytes) {
+            acc.flush();
+        }
+    }
+
+    /**
+     * Flushes every pending batch immediately
+     */
+    public synchronized void flush() {
+        for(Accumulator acc : accumulators.values()) {
+            acc.flush();
+        }
+    }
+
+    /**
+     * Flushes all batches belonging to a device
+     */
+    public synchronized void flushDevice(BluetoothDevice device) {
+        for(Accumulator acc : accumulators.values()) {
+            if(acc.device.getAddress().equals(device.getAddress())) {
+                acc.flush();
+            }
+        }
+    }
+
+    /**
+     * Flushes a device's batches and frees their buffers, e.g. when it disconnects
+     */
+    public synchronized void removeDevice(BluetoothDevice device) {
+        Iterator<Accumulator> it = accumulators.values().iterator();
+        while(it.hasNext()) {
+            Accumulator acc = it.next();
+            if(acc.device.getAddress().equals(device.getAddress())) {
+                acc.flush();
+                it.remove();
+            }
+        }
+    }
+
+    private class Accumulator implements Runnable {
+        final BluetoothDevice device;
+        final String uuid;
+        byte[] data;
+        int[] offsets;
+        long[] timestamps;
+        int count = 0, size = 0;
+
+        Accumulator(BluetoothDevice device, String uuid) {
+            this.device = device;
+            this.uuid = uuid;
+            allocate();
+        }
+
+        private void allocate() {
+            data = new byte[maxBytes];
+            offsets = new int[maxPackets];
+            timestamps = new long[maxPackets];
+        }
+
+        void append(byte[] packet, long timestamp) {
+            if(count == 0) {
+                handler.postDelayed(this, maxLatencyMs);
+            }
+            if(size + packet.length > data.length) {
+                // A single packet larger than maxBytes
+                byte[] grown = new byte[size + packet.length];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+            System.arraycopy(packet, 0, data, size, packet.length);
+            offsets[count] = size;
+            timestamps[count] = timestamp;
+            size += packet.length;
+            count += 1;
+        }
+
+        void flush() {
+            handler.removeCallbacks(this);
+            if(count == 0) {
+                return;
+            }
+            final NotificationBatch batch = new NotificationBatch(device, uuid, data, offsets,
+                    timestamps, count, size);
+            allocate();
+            count = 0;
+            size = 0;
+            handler.post(() -> listener.notificationBatch(batch));
+        }
+
+        // Latency timer
+        @Override
+        public void run() {
+            synchronized(NotificationBatcher.this) {
+                flush();
+            }
+        }
+    }
+}
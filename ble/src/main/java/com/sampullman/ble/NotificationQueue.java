@@ -0,0 +1,202 @@
+package com.sampullman.ble;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring buffer between a connection's GATT callback thread (producer)
+ * and the thread that delivers notifications to the app (consumer).
+ * When the ring is full the drop policy decides what happens to the incoming packet:
+ * DROP_OLDEST overwrites the oldest queued packet, DROP_NEWEST discards the incoming one,
+ * and BLOCK stalls the callback thread until space frees up or blockTimeoutMs elapses.
+ */
+public class NotificationQueue {
+    public static final int DROP_OLDEST=0, DROP_NEWEST=1, BLOCK=2;
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int mask;
+    private final String[] uuids;
+    private final int[] handles;
+    private final byte[][] data;
+    private final long[] timestamps;
+    private final int dropPolicy;
+    private final long blockTimeoutNanos;
+
+    // head is advanced by the consumer, and by the producer when dropping the oldest entry
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private final AtomicLong droppedNewest = new AtomicLong();
+    private volatile int highWatermark = 0;
+
+    /**
+     * A notification removed from the queue. Reused between polls to avoid allocation
+     */
+    public static class Entry {
+        public String uuid;
+        public int handle;
+        public byte[] data;
+        public long timestamp;
+    }
+
+    public NotificationQueue() {
+        this(DEFAULT_CAPACITY, DROP_OLDEST, 0);
+    }
+
+    /**
+     * @param capacity Maximum queued notifications, rounded up to a power of two
+     * @param dropPolicy DROP_OLDEST, DROP_NEWEST or BLOCK
+     * @param blockTimeoutMs Maximum time the producer blocks under the BLOCK policy before
+     *                       the incoming packet is dropped
+     */
+    public NotificationQueue(int capacity, int dropPolicy, long blockTimeoutMs) {
+        if(capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.uuids = new String[size];
+        this.handles = new int[size];
+        this.data = new byte[size][];
+        this.timestamps = new long[size];
+        this.dropPolicy = dropPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+    }
+
+    public boolean offer(String uuid, byte[] value, long timestamp) {
+        return offer(uuid, UuidTable.NO_HANDLE, value, timestamp);
+    }
+
+    /**
+     * Adds a notification. Must only be called from the producer thread
+     *
+     * @param handle The characteristic's handle in the connection's UuidTable, or NO_HANDLE
+     * @return True if the notification was queued
+     */
+    public boolean offer(String uuid, int handle, byte[] value, long timestamp) {
+        offered.incrementAndGet();
+        long t = tail.get();
+        long blockStart = 0;
+
+        while(t - head.get() > mask) {
+            if(dropPolicy == DROP_NEWEST) {
+                droppedNewest.incrementAndGet();
+                return false;
+
+            } else if(dropPolicy == DROP_OLDEST) {
+                long h = head.get();
+                if(t - h > mask && head.compareAndSet(h, h + 1)) {
+                    droppedOldest.incrementAndGet();
+                }
+
+            } else {
+                if(blockStart == 0) {
+                    blockStart = System.nanoTime();
+                } else if(System.nanoTime() - blockStart > blockTimeoutNanos) {
+                    droppedNewest.incrementAndGet();
+                    return false;
+                }
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            }
+        }
+        int index = (int)(t & mask);
+        uuids[index] = uuid;
+        handles[index] = handle;
+        data[index] = value;
+        timestamps[index] = timestamp;
+        tail.lazySet(t + 1);
+
+        int depth = (int)(t + 1 - head.get());
+        if(depth > highWatermark) {
+            highWatermark = depth;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest notification. Must only be called from the consumer thread
+     *
+     * @param entry Filled with the notification
+     * @return False if the queue was empty
+     */
+    public boolean poll(Entry entry) {
+        while(true) {
+            long h = head.get();
+            if(h >= tail.get()) {
+                return false;
+            }
+            int index = (int)(h & mask);
+            String uuid = uuids[index];
+            int handle = handles[index];
+            byte[] value = data[index];
+            long timestamp = timestamps[index];
+
+            // If the producer dropped this slot while we were reading it, try the next one
+            if(head.compareAndSet(h, h + 1)) {
+                entry.uuid = uuid;
+                entry.handle = handle;
+                entry.data = value;
+                entry.timestamp = timestamp;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Marks the queue as having a pending drain
+     *
+     * @return True if the caller should schedule the drain
+     */
+    boolean requestDrain() {
+        return drainScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Called by the consumer before draining, so packets offered during the drain schedule another
+     */
+    void drainStarted() {
+        drainScheduled.set(false);
+    }
+
+    public int size() {
+        return (int)Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int getDropPolicy() {
+        return dropPolicy;
+    }
+
+    public long getOfferedCount() {
+        return offered.get();
+    }
+
+    public long getDroppedOldestCount() {
+        return droppedOldest.get();
+    }
+
+    public long getDroppedNewestCount() {
+        return droppedNewest.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedOldest.get() + droppedNewest.get();
+    }
+
+    /**
+     * @return The deepest the queue has been since creation
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+}
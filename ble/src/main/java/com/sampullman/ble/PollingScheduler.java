@@ -0,0 +1,204 @@
+package com.sampullman.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Reads characteristics of a connection periodically.
+ * Polls are phased so they are spread evenly instead of bunching up in the operation queue,
+ * a poll is skipped while the previous read of the same characteristic is outstanding, and
+ * intervals are stretched when the measured read round-trip time shows the link can't
+ * sustain the requested rates. Results arrive through the normal read path.
+ */
+public class PollingScheduler {
+    // Fraction of the link's read capacity polling may use
+    private static final double LINK_HEADROOM = 1.5;
+    private static final long MIN_PENDING_TIMEOUT_MS = 5000;
+    // Weight of new round-trip samples in the moving average
+    private static final double RTT_ALPHA = 0.2;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LeConnection connection;
+    private final ArrayList<Poll> polls = new ArrayList<>();
+    private double rttMs = 0;
+    private boolean running = false;
+
+    private static class Poll {
+        final UUID serviceUuid, uuid;
+        final String key;
+        final long intervalMs;
+        long nextDueMs;
+        boolean pending = false;
+        long issuedMs;
+        long skipped = 0;
+
+        Poll(UUID serviceUuid, UUID uuid, long intervalMs) {
+            this.serviceUuid = serviceUuid;
+            this.uuid = uuid;
+            this.key = uuid.toString();
+            this.intervalMs = intervalMs;
+        }
+    }
+
+    private final Runnable pollTask = this::poll;
+
+    PollingScheduler(LeConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Reads a characteristic every intervalMs while the connection is ready.
+     * Replaces any existing schedule for the characteristic
+     */
+    public synchronized void schedule(UUID serviceUuid, UUID uuid, long intervalMs) {
+        if(intervalMs <= 0) {
+            throw new IllegalArgumentException("Polling interval must be positive");
+        }
+        removePoll(uuid);
+        polls.add(new Poll(serviceUuid, uuid, intervalMs));
+        rephase();
+    }
+
+    public synchronized void cancel(UUID uuid) {
+        removePoll(uuid);
+        rephase();
+    }
+
+    public synchronized void cancelAll() {
+        polls.clear();
+        handler.removeCallbacks(pollTask);
+    }
+
+    /**
+     * @return The interval actually used for a characteristic after adapting to the link, or 0
+     */
+    public synchronized long getEffectiveIntervalMs(UUID uuid) {
+        for(Poll p : polls) {
+            if(p.uuid.equals(uuid)) {
+                return effectiveInterval(p);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return Polls skipped because the previous read was still pending
+     */
+    public synchronized long getSkippedCount(UUID uuid) {
+        for(Poll p : polls) {
+            if(p.uuid.equals(uuid)) {
+                return p.skipped;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return Moving average of read round-trip time, including queueing
+     */
+    public synchronized double getRoundTripMs() {
+        return rttMs;
+    }
+
+    synchronized void start() {
+        running = true;
+        rephase();
+    }
+
+    synchronized void stop() {
+        running = false;
+        handler.removeCallbacks(pollTask);
+        for(Poll p : polls) {
+            p.pending = false;
+        }
+    }
+
+    /**
+     * Called from the GATT callback thread when any read on the connection completes
+     */
+    synchronized void readComplete(String uuid) {
+        for(Poll p : polls) {
+            if(p.pending && p.key.equals(uuid)) {
+                p.pending = false;
+                long rtt = SystemClock.elapsedRealtime() - p.issuedMs;
+                rttMs = (rttMs == 0) ? rtt : rttMs + RTT_ALPHA * (rtt - rttMs);
+            }
+        }
+    }
+
+    // Distribute the first polls evenly over the shortest interval
+    private void rephase() {
+        handler.removeCallbacks(pollTask);
+        if(!running || polls.isEmpty()) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long shortest = Long.MAX_VALUE;
+        for(Poll p : polls) {
+            shortest = Math.min(shortest, effectiveInterval(p));
+        }
+        for(int i = 0; i < polls.size(); i++) {
+            polls.get(i).nextDueMs = now + i * shortest / polls.size();
+        }
+        scheduleNext(now);
+    }
+
+    private long effectiveInterval(Poll p) {
+        long linkLimited = (long)(rttMs * polls.size() * LINK_HEADROOM);
+        return Math.max(p.intervalMs, linkLimited);
+    }
+
+    private void scheduleNext(long now) {
+        long next = Long.MAX_VALUE;
+        for(Poll p : polls) {
+            next = Math.min(next, p.nextDueMs);
+        }
+        if(next != Long.MAX_VALUE) {
+            handler.postDelayed(pollTask, Math.max(0, next - now));
+        }
+    }
+
+    private synchronized void poll() {
+        if(!running) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        for(Poll p : polls) {
+            if(p.nextDueMs > now) {
+                continue;
+            }
+            long interval = effectiveInterval(p);
+            if(p.pending && now - p.issuedMs > Math.max(MIN_PENDING_TIMEOUT_MS, 4 * interval)) {
+                Timber.d("Poll of %s timed out", p.uuid);
+                p.pending = false;
+            }
+            if(p.pending) {
+                p.skipped += 1;
+            } else {
+                p.pending = true;
+                p.issuedMs = now;
+                connection.readCharacteristic(p.serviceUuid, p.uuid);
+            }
+            // Keep the phase, but don't try to catch up on missed polls
+            p.nextDueMs += interval;
+            if(p.nextDueMs <= now) {
+                p.nextDueMs = now + interval;
+            }
+        }
+        scheduleNext(now);
+    }
+
+    private void removePoll(UUID uuid) {
+        for(int i = polls.size() - 1; i >= 0; i--) {
+            if(polls.get(i).uuid.equals(uuid)) {
+                polls.remove(i);
+            }
+        }
+    }
+}
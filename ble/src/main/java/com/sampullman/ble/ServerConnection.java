@@ -0,0 +1,138 @@
+package com.sampullman.ble;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A central connected to the GattServer. Notifications to it are queued in its own
+ * NotificationQueue and sent one at a time, each after the stack reports the previous one sent.
+ */
+public class ServerConnection {
+    private final GattServer server;
+    private final BluetoothDevice device;
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
+    private final NotificationQueue queue;
+    // SubscriptionSet.NONE, NOTIFY or INDICATE, indexed by the server's characteristic handles
+    private final int[] subscriptions;
+    private volatile int mtu = LeConnection.DEFAULT_MTU;
+    private volatile boolean connected = true;
+
+    // Send pipeline state, only touched by the thread that set sending
+    final AtomicBoolean sending = new AtomicBoolean();
+    final NotificationQueue.Entry entry = new NotificationQueue.Entry();
+    boolean retrying = false;
+    int retries = 0, inFlightBytes = 0;
+
+    // Prepared writes in progress, indexed by handle and guarded by this
+    private final ByteArrayOutputStream[] preparedWrites;
+
+    ServerConnection(GattServer server, BluetoothDevice device, NotificationQueue queue, int handles) {
+        this.server = server;
+        this.device = device;
+        this.queue = queue;
+        this.subscriptions = new int[handles];
+        this.preparedWrites = new ByteArrayOutputStream[handles];
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    @SuppressLint("MissingPermission")
+    public String getName() {
+        String name = device.getName();
+        return (name == null) ? device.getAddress() : name;
+    }
+
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Outgoing notifications not yet handed to the stack, with their drop counts
+     */
+    public NotificationQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * @return The negotiated MTU. Notifications carry at most getMtu() - 3 bytes
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return SubscriptionSet.NONE, NOTIFY or INDICATE
+     */
+    public int getSubscription(UUID uuid) {
+        int handle = server.getUuidTable().handleOf(uuid);
+        return (handle == UuidTable.NO_HANDLE) ? SubscriptionSet.NONE : getSubscription(handle);
+    }
+
+    int getSubscription(int handle) {
+        synchronized(subscriptions) {
+            return subscriptions[handle];
+        }
+    }
+
+    void setSubscription(int handle, int subscription) {
+        synchronized(subscriptions) {
+            subscriptions[handle] = subscription;
+        }
+    }
+
+    void mtuChanged(int mtu) {
+        this.mtu = mtu;
+    }
+
+    void disconnected() {
+        connected = false;
+        metrics.priorityChanged(-1);
+        metrics.phyChanged(0);
+    }
+
+    /**
+     * @return False if the offset doesn't continue the characteristic's prepared write
+     */
+    synchronized boolean prepareWrite(int handle, int offset, byte[] value) {
+        ByteArrayOutputStream preparedWrite = preparedWrites[handle];
+        if(preparedWrite == null) {
+            preparedWrite = new ByteArrayOutputStream();
+            preparedWrites[handle] = preparedWrite;
+        }
+        // Offsets arrive in order from Android's stack, so appending is enough
+        if(offset != preparedWrite.size()) {
+            return false;
+        }
+        preparedWrite.write(value, 0, value.length);
+        return true;
+    }
+
+    /**
+     * @return Values of the prepared writes indexed by handle, null where there was none. Clears the writes
+     */
+    synchronized byte[][] takePreparedWrites() {
+        byte[][] values = new byte[preparedWrites.length][];
+        for(int handle = 0; handle < preparedWrites.length; handle++) {
+            if(preparedWrites[handle] != null) {
+                values[handle] = preparedWrites[handle].toByteArray();
+                preparedWrites[handle] = null;
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerConnection name:" + getName() + ", connected:" + connected + ", mtu:" + mtu;
+    }
+}
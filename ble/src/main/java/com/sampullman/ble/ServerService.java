@@ -0,0 +1,94 @@
+package com.sampullman.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Declares a service hosted by GattServer. Characteristics that notify or indicate get a
+ * Client Characteristic Configuration descriptor, tracked per connected device by the server.
+ * Characteristic UUIDs must be unique across all services of a server.
+ */
+public class ServerService {
+    static final UUID CCCD_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    final UUID uuid;
+    final List<Characteristic> characteristics = new ArrayList<>();
+
+    public static class Characteristic {
+        final UUID uuid;
+        final int properties, permissions;
+        volatile byte[] value;
+
+        Characteristic(UUID uuid, int properties, int permissions, byte[] value) {
+            this.uuid = uuid;
+            this.properties = properties;
+            this.permissions = permissions;
+            this.value = value;
+        }
+
+        boolean canSubscribe() {
+            return (properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY
+                    | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0;
+        }
+    }
+
+    public ServerService(UUID uuid) {
+        this.uuid = uuid;
+    }
+
+    /**
+     * @param properties BluetoothGattCharacteristic.PROPERTY_* bits
+     * @param permissions BluetoothGattCharacteristic.PERMISSION_* bits
+     * @param value Initial value served to reads, may be null
+     */
+    public ServerService addCharacteristic(UUID uuid, int properties, int permissions, byte[] value) {
+        characteristics.add(new Characteristic(uuid, properties, permissions, value));
+        return this;
+    }
+
+    /**
+     * A characteristic that only notifies, such as a data stream
+     */
+    public ServerService addNotifyCharacteristic(UUID uuid) {
+        return addCharacteristic(uuid, BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0, null);
+    }
+
+    /**
+     * A characteristic that accepts writes with or without response, such as a command input
+     */
+    public ServerService addWriteCharacteristic(UUID uuid) {
+        return addCharacteristic(uuid, BluetoothGattCharacteristic.PROPERTY_WRITE
+                | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE, null);
+    }
+
+    /**
+     * A readable characteristic with a fixed value, such as a version or configuration
+     */
+    public ServerService addReadCharacteristic(UUID uuid, byte[] value) {
+        return addCharacteristic(uuid, BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ, value);
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    BluetoothGattService build() {
+        BluetoothGattService service = new BluetoothGattService(uuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for(Characteristic c : characteristics) {
+            BluetoothGattCharacteristic cha = new BluetoothGattCharacteristic(c.uuid, c.properties, c.permissions);
+            if(c.canSubscribe()) {
+                cha.addDescriptor(new BluetoothGattDescriptor(CCCD_UUID,
+                        BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+            }
+            service.addCharacteristic(cha);
+        }
+        return service;
+    }
+}
@@ -0,0 +1,132 @@
+package com.sampullman.ble;
+
+import android.bluetooth.BluetoothGattDescriptor;
+
+import com.sampullman.ble.operation.SubscribeOperation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Declarative notify/indicate state for a connection's characteristics.
+ * Changes are collected with set() and written by apply(), which only writes CCCDs whose
+ * state differs from the last successful write, in a single queued operation.
+ * The desired state is restored automatically after reconnecting.
+ */
+public class SubscriptionSet {
+    public static final int NONE=0, NOTIFY=1, INDICATE=2;
+
+    private final LeConnection connection;
+    private final Map<UUID, Subscription> subscriptions = new HashMap<>();
+
+    private static class Subscription {
+        final UUID serviceUuid;
+        int desired = NONE;
+        // State confirmed by the last successful CCCD write
+        int current = NONE;
+
+        Subscription(UUID serviceUuid) {
+            this.serviceUuid = serviceUuid;
+        }
+    }
+
+    SubscriptionSet(LeConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Sets the desired state of a characteristic. Nothing is written until apply()
+     *
+     * @param mode NONE, NOTIFY or INDICATE
+     */
+    public synchronized SubscriptionSet set(UUID serviceUuid, UUID uuid, int mode) {
+        Subscription subscription = subscriptions.get(uuid);
+        if(subscription == null) {
+            subscription = new Subscription(serviceUuid);
+            subscriptions.put(uuid, subscription);
+        }
+        subscription.desired = mode;
+        return this;
+    }
+
+    public synchronized int getState(UUID uuid) {
+        Subscription subscription = subscriptions.get(uuid);
+        return (subscription == null) ? NONE : subscription.current;
+    }
+
+    /**
+     * Queues the CCCD writes needed to reach the desired state
+     *
+     * @return Number of writes queued
+     */
+    public int apply() {
+        if(connection.gatt == null) {
+            Timber.d("SubscriptionSet.apply() without a connection, deferring until connected");
+            return 0;
+        }
+        SubscribeOperation operation = new SubscribeOperation(connection.gatt, this::written);
+        synchronized(this) {
+            for(Map.Entry<UUID, Subscription> entry : subscriptions.entrySet()) {
+                Subscription subscription = entry.getValue();
+                if(subscription.desired != subscription.current) {
+                    operation.add(subscription.serviceUuid, entry.getKey(), cccdValue(subscription.desired));
+                }
+            }
+        }
+        if(operation.size() > 0) {
+            connection.leService.queueOperation(operation);
+        }
+        return operation.size();
+    }
+
+    /**
+     * Called when the connection drops; the peer forgets unbonded subscriptions
+     */
+    synchronized void reset() {
+        for(Subscription subscription : subscriptions.values()) {
+            subscription.current = NONE;
+        }
+    }
+
+    synchronized boolean hasSubscriptions() {
+        for(Subscription subscription : subscriptions.values()) {
+            if(subscription.desired != NONE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void written(UUID serviceUuid, UUID uuid, byte[] value, boolean success) {
+        Subscription subscription = subscriptions.get(uuid);
+        if(subscription == null) {
+            return;
+        }
+        if(success) {
+            subscription.current = modeOf(value);
+        } else {
+            Timber.w("Subscription write failed for %s", uuid);
+        }
+    }
+
+    private static byte[] cccdValue(int mode) {
+        if(mode == NOTIFY) {
+            return BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        } else if(mode == INDICATE) {
+            return BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
+        return BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+    }
+
+    private static int modeOf(byte[] value) {
+        if(value == BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE) {
+            return NOTIFY;
+        } else if(value == BluetoothGattDescriptor.ENABLE_INDICATION_VALUE) {
+            return INDICATE;
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,167 @@
+package com.sampullman.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Assigns each characteristic UUID of a connection a small integer handle after discovery,
+ * so per-packet dispatch can index arrays instead of hashing and comparing UUID strings.
+ * Handles are stable for the life of the LeConnection: rediscovery after a reconnect keeps
+ * existing handles and appends new characteristics. Each UUID's string form is created once
+ * and shared, so string keys from the table compare by identity.
+ * 16-bit Bluetooth SIG UUIDs (0000xxxx-0000-1000-8000-00805f9b34fb) are looked up by their
+ * short value. Tables are immutable and safe to read from any thread.
+ */
+public final class UuidTable {
+    public static final int NO_HANDLE = -1;
+
+    static final UuidTable EMPTY = new UuidTable(new UUID[0]);
+
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+    private static final long SHORT_UUID_MASK = 0xFFFF0000FFFFFFFFL;
+
+    private final UUID[] uuids;
+    private final String[] strings;
+    private final int[] shortUuids;
+    // Open addressed, holding handle + 1 so 0 marks an empty slot
+    private final int[] shortSlots, longSlots;
+
+    private UuidTable(UUID[] uuids) {
+        this.uuids = uuids;
+        int count = uuids.length;
+        strings = new String[count];
+        shortUuids = new int[count];
+        int size = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+        shortSlots = new int[size];
+        longSlots = new int[size];
+        for(int handle = 0; handle < count; handle++) {
+            strings[handle] = uuids[handle].toString();
+            int shortUuid = toShortUuid(uuids[handle]);
+            shortUuids[handle] = shortUuid;
+            int[] slots = (shortUuid == -1) ? longSlots : shortSlots;
+            int slot = ((shortUuid == -1) ? uuids[handle].hashCode() : shortUuid) & (size - 1);
+            while(slots[slot] != 0) {
+                slot = (slot + 1) & (size - 1);
+            }
+            slots[slot] = handle + 1;
+        }
+    }
+
+    /**
+     * @return A table with this table's handles, plus handles for characteristics not yet in it
+     */
+    UuidTable extend(List<BluetoothGattService> services) {
+        List<UUID> discovered = new ArrayList<>();
+        for(BluetoothGattService service : services) {
+            for(BluetoothGattCharacteristic cha : service.getCharacteristics()) {
+                discovered.add(cha.getUuid());
+            }
+        }
+        return extendUuids(discovered);
+    }
+
+    UuidTable extendUuids(List<UUID> discovered) {
+        UUID[] added = Arrays.copyOf(uuids, uuids.length + 16);
+        int count = uuids.length;
+        for(UUID uuid : discovered) {
+            if(handleOf(uuid) != NO_HANDLE || indexOf(added, count, uuid) != -1) {
+                continue;
+            }
+            if(count == added.length) {
+                added = Arrays.copyOf(added, count * 2);
+            }
+            added[count++] = uuid;
+        }
+        return (count == uuids.length) ? this : new UuidTable(Arrays.copyOf(added, count));
+    }
+
+    private static int indexOf(UUID[] uuids, int count, UUID uuid) {
+        for(int i = 0; i < count; i++) {
+            if(uuids[i].equals(uuid)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The handle of a characteristic UUID, or NO_HANDLE if it wasn't discovered
+     */
+    public int handleOf(UUID uuid) {
+        int shortUuid = toShortUuid(uuid);
+        if(shortUuid != -1) {
+            return handleOf(shortUuid);
+        }
+        int mask = longSlots.length - 1;
+        for(int slot = uuid.hashCode() & mask; longSlots[slot] != 0; slot = (slot + 1) & mask) {
+            int handle = longSlots[slot] - 1;
+            if(uuids[handle].equals(uuid)) {
+                return handle;
+            }
+        }
+        return NO_HANDLE;
+    }
+
+    /**
+     * @return The handle of a 16-bit SIG UUID such as 0x2A37, or NO_HANDLE if it wasn't discovered
+     */
+    public int handleOf(int shortUuid) {
+        int mask = shortSlots.length - 1;
+        for(int slot = shortUuid & mask; shortSlots[slot] != 0; slot = (slot + 1) & mask) {
+            int handle = shortSlots[slot] - 1;
+            if(shortUuids[handle] == shortUuid) {
+                return handle;
+            }
+        }
+        return NO_HANDLE;
+    }
+
+    public UUID getUuid(int handle) {
+        return uuids[handle];
+    }
+
+    /**
+     * @return The shared string form of a handle's UUID, as used in listener callbacks
+     */
+    public String getString(int handle) {
+        return strings[handle];
+    }
+
+    /**
+     * @return The 16-bit SIG UUID of a handle, or -1 if it has a full 128-bit UUID
+     */
+    public int getShortUuid(int handle) {
+        return shortUuids[handle];
+    }
+
+    /**
+     * @return Number of handles. Handles run from 0 to size() - 1, so they can index arrays
+     */
+    public int size() {
+        return uuids.length;
+    }
+
+    /**
+     * @return The 16-bit value of a SIG base UUID, or -1 if the UUID isn't one
+     */
+    public static int toShortUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        if(uuid.getLeastSignificantBits() != BASE_UUID_LSB || (msb & SHORT_UUID_MASK) != BASE_UUID_MSB) {
+            return -1;
+        }
+        return (int)(msb >>> 32) & 0xFFFF;
+    }
+
+    /**
+     * @return The full UUID of a 16-bit SIG UUID such as 0x2A37
+     */
+    public static UUID fromShortUuid(int shortUuid) {
+        return new UUID(BASE_UUID_MSB | ((long)(shortUuid & 0xFFFF) << 32), BASE_UUID_LSB);
+    }
+}
@@ -0,0 +1,108 @@
+package com.sampullman.ble.event;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed dispatcher for LeEvent subclasses, without reflection.
+ * A listener registered for a type also receives its subclasses, e.g. a LeEvent listener
+ * receives every event. Listener arrays for each concrete event type are rebuilt on
+ * register/unregister, so post() is a map lookup and an array walk regardless of how many
+ * listeners exist for other types.
+ * Events can optionally be forwarded to an EventBus for existing @Subscribe subscribers.
+ */
+public class LeEventDispatcher {
+    private static final LeEventListener<?>[] NO_LISTENERS = new LeEventListener<?>[0];
+
+    // Event types known up front, so their tables are built at registration instead of first post
+    private static final Class<?>[] KNOWN_EVENTS = {
+            LeEvent.class, LeConnectionEvent.class, LeReadEvent.class, LeNotificationEvent.class
+    };
+
+    private final List<Registration> registrations = new ArrayList<>();
+    private volatile Map<Class<?>, LeEventListener<?>[]> dispatchTable = new HashMap<>();
+    private volatile EventBus eventBus;
+
+    private static class Registration {
+        final Class<?> type;
+        final LeEventListener<?> listener;
+
+        Registration(Class<?> type, LeEventListener<?> listener) {
+            this.type = type;
+            this.listener = listener;
+        }
+    }
+
+    public LeEventDispatcher() {
+        rebuild();
+    }
+
+    /**
+     * @param bus Forward every posted event to this bus as well, or null to stop forwarding
+     */
+    public void setEventBus(EventBus bus) {
+        this.eventBus = bus;
+    }
+
+    public synchronized <E extends LeEvent> void register(Class<E> type, LeEventListener<? super E> listener) {
+        registrations.add(new Registration(type, listener));
+        rebuild();
+    }
+
+    public synchronized void unregister(LeEventListener<?> listener) {
+        for(int i = registrations.size() - 1; i >= 0; i--) {
+            if(registrations.get(i).listener == listener) {
+                registrations.remove(i);
+            }
+        }
+        rebuild();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void post(LeEvent event) {
+        LeEventListener<?>[] listeners = dispatchTable.get(event.getClass());
+        if(listeners == null) {
+            listeners = addEventType(event.getClass());
+        }
+        for(LeEventListener<?> listener : listeners) {
+            ((LeEventListener<LeEvent>) listener).onEvent(event);
+        }
+        EventBus bus = eventBus;
+        if(bus != null) {
+            bus.post(event);
+        }
+    }
+
+    private synchronized LeEventListener<?>[] addEventType(Class<?> eventType) {
+        Map<Class<?>, LeEventListener<?>[]> table = new HashMap<>(dispatchTable);
+        LeEventListener<?>[] listeners = listenersFor(eventType);
+        table.put(eventType, listeners);
+        dispatchTable = table;
+        return listeners;
+    }
+
+    private void rebuild() {
+        Map<Class<?>, LeEventListener<?>[]> table = new HashMap<>();
+        for(Class<?> eventType : KNOWN_EVENTS) {
+            table.put(eventType, listenersFor(eventType));
+        }
+        for(Class<?> eventType : dispatchTable.keySet()) {
+            table.put(eventType, listenersFor(eventType));
+        }
+        dispatchTable = table;
+    }
+
+    private LeEventListener<?>[] listenersFor(Class<?> eventType) {
+        List<LeEventListener<?>> listeners = new ArrayList<>();
+        for(Registration registration : registrations) {
+            if(registration.type.isAssignableFrom(eventType)) {
+                listeners.add(registration.listener);
+            }
+        }
+        return listeners.isEmpty() ? NO_LISTENERS : listeners.toArray(NO_LISTENERS);
+    }
+}
@@ -0,0 +1,5 @@
+package com.sampullman.ble.event;
+
+public interface LeEventListener<E extends LeEvent> {
+    void onEvent(E event);
+}
@@ -13,7 +13,7 @@ import timber.log.Timber;
 
 public class CharacteristicRequest extends LeOperation {
     public static final int WRITE=1, READ=2, REQUEST_NOTIFY=3, REQUEST_INDICATE=4;
-    private static final UUID CHAR_NOTIFICATION_DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    static final UUID CHAR_NOTIFICATION_DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
     private final UUID uuid, serviceUuid;
     private final byte[] data;
     private final int type;
@@ -55,9 +55,13 @@ public class CharacteristicRequest extends LeOperation {
         return serviceUuid;
     }
 
-    private boolean descriptorWorkaround(BluetoothGatt gatt, BluetoothGattDescriptor desc) {
+    // Some stacks write descriptors with the parent characteristic's write type
+    static boolean descriptorWorkaround(BluetoothGatt gatt, BluetoothGattDescriptor desc) {
         final BluetoothGattCharacteristic parentCharacteristic = desc.getCharacteristic();
         final int originalWriteType = parentCharacteristic.getWriteType();
+        if(originalWriteType == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
+            return gatt.writeDescriptor(desc);
+        }
         parentCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
         final boolean result = gatt.writeDescriptor(desc);
         parentCharacteristic.setWriteType(originalWriteType);
@@ -1,5 +1,6 @@
 package com.sampullman.ble.operation;
 
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 
@@ -20,13 +21,13 @@ public class ConnectOperation extends LeOperation {
     public boolean execute(BluetoothLeService service) {
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
-        BluetoothGatt gatt;
         int currentApiVersion = android.os.Build.VERSION.SDK_INT;
-        GattCallback gattCallback = new GattCallback(service);
-        gattCallback.startConnectTimer();
+        GattCallback gattCallback = new GattCallback(service, leConnection);
 
         BluetoothDevice device = leConnection.getDevice();
-        if (currentApiVersion >= android.os.Build.VERSION_CODES.M) {
+        if (currentApiVersion >= android.os.Build.VERSION_CODES.O) {
+            gatt = connectWithPhy(service, device, gattCallback);
+        } else if (currentApiVersion >= android.os.Build.VERSION_CODES.M) {
             gatt = device.connectGatt(service, false, gattCallback, BluetoothDevice.TRANSPORT_LE);
         } else {
             Timber.d("Connecting with old API");
@@ -34,7 +35,23 @@ public class ConnectOperation extends LeOperation {
 
         }
         leConnection.setConnecting(gatt);
-        gattCallback.setGatt(gatt);
         return true;
     }
+
+    @TargetApi(26)
+    private BluetoothGatt connectWithPhy(BluetoothLeService service, BluetoothDevice device, GattCallback gattCallback) {
+        return device.connectGatt(service, false, gattCallback, BluetoothDevice.TRANSPORT_LE,
+                leConnection.getConnectPhyMask());
+    }
+
+    // The stack may call back before connectGatt returns, so match on the device
+    @Override
+    public boolean ownsGatt(BluetoothGatt gatt) {
+        return gatt != null && gatt.getDevice() != null
+                && gatt.getDevice().getAddress().equals(leConnection.getDevice().getAddress());
+    }
+
+    public LeConnection getConnection() {
+        return leConnection;
+    }
 }
@@ -0,0 +1,243 @@
+package com.sampullman.ble.operation;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.sampullman.ble.BluetoothLeService;
+import com.sampullman.ble.LeConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Writes the same value to a characteristic on several connections as one queued operation.
+ * All writes are issued back to back, since each connection has its own GATT client, so
+ * they are in flight in parallel. The operation completes when every connection has answered
+ * or the timeout expires, and reports per-device latency and the skew between devices.
+ */
+public class GroupWriteOperation extends LeOperation {
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<LeConnection> connections;
+    private final UUID serviceUuid, uuid;
+    private final byte[] data;
+    private final Listener listener;
+    private final long timeoutMs;
+    private final long[] issuedAt, completedAt;
+    private final boolean[] success;
+    // Writes issued and not yet answered, by connection index
+    private final boolean[] pending;
+    private int outstanding = 0;
+    private boolean finished = false;
+    private BluetoothLeService service;
+    private final Runnable timeoutTask = this::timeout;
+
+    public interface Listener {
+        void groupWriteComplete(Result result);
+    }
+
+    public static class Result {
+        private final List<LeConnection> connections;
+        private final long[] issuedAt, completedAt;
+        private final boolean[] success;
+
+        Result(List<LeConnection> connections, long[] issuedAt, long[] completedAt, boolean[] success) {
+            this.connections = connections;
+            this.issuedAt = issuedAt;
+            this.completedAt = completedAt;
+            this.success = success;
+        }
+
+        public List<LeConnection> getConnections() {
+            return connections;
+        }
+
+        public boolean isSuccess(int index) {
+            return success[index];
+        }
+
+        public int getFailureCount() {
+            int failures = 0;
+            for(boolean s : success) {
+                failures += s ? 0 : 1;
+            }
+            return failures;
+        }
+
+        /**
+         * @return Time from issuing the write on a connection to its response, or 0 if it failed
+         */
+        public long getLatencyNanos(int index) {
+            return success[index] ? completedAt[index] - issuedAt[index] : 0;
+        }
+
+        /**
+         * @return Spread between the first and last write being issued
+         */
+        public long getIssueSkewNanos() {
+            return spread(issuedAt);
+        }
+
+        /**
+         * @return Spread between the first and last successful response
+         */
+        public long getCompletionSkewNanos() {
+            return spread(completedAt);
+        }
+
+        private long spread(long[] times) {
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            for(int i = 0; i < times.length; i++) {
+                if(success[i]) {
+                    min = Math.min(min, times[i]);
+                    max = Math.max(max, times[i]);
+                }
+            }
+            return (min == Long.MAX_VALUE) ? 0 : max - min;
+        }
+    }
+
+    public GroupWriteOperation(List<LeConnection> connections, UUID serviceUuid, UUID uuid,
+                               byte[] data, Listener listener) {
+        this(connections, serviceUuid, uuid, data, listener, DEFAULT_TIMEOUT_MS);
+    }
+
+    public GroupWriteOperation(List<LeConnection> connections, UUID serviceUuid, UUID uuid,
+                               byte[] data, Listener listener, long timeoutMs) {
+        super();
+        this.connections = new ArrayList<>(connections);
+        this.serviceUuid = serviceUuid;
+        this.uuid = uuid;
+        this.data = data;
+        this.listener = listener;
+        this.timeoutMs = timeoutMs;
+        int size = this.connections.size();
+        issuedAt = new long[size];
+        completedAt = new long[size];
+        success = new boolean[size];
+        pending = new boolean[size];
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public synchronized boolean execute(BluetoothLeService service) {
+        this.service = service;
+        // Resolve every characteristic first so the writes go out as close together as possible
+        BluetoothGattCharacteristic[] characteristics = new BluetoothGattCharacteristic[connections.size()];
+        for(int i = 0; i < connections.size(); i++) {
+            BluetoothGatt gatt = connections.get(i).gatt;
+            BluetoothGattService gattService = (gatt == null) ? null : gatt.getService(serviceUuid);
+            characteristics[i] = (gattService == null) ? null : gattService.getCharacteristic(uuid);
+            if(characteristics[i] != null) {
+                characteristics[i].setValue(data);
+            } else {
+                Timber.e("Group write: characteristic not found on %s", connections.get(i).getName());
+            }
+        }
+        for(int i = 0; i < connections.size(); i++) {
+            if(characteristics[i] != null) {
+                issuedAt[i] = SystemClock.elapsedRealtimeNanos();
+                if(connections.get(i).gatt.writeCharacteristic(characteristics[i])) {
+                    pending[i] = true;
+                    outstanding += 1;
+                }
+            }
+        }
+        if(outstanding == 0) {
+            finish();
+            return false;
+        }
+        handler.postDelayed(timeoutTask, timeoutMs);
+        return true;
+    }
+
+    // The group write completes itself, so every hook swallows callbacks from member clients
+    // other than the answers it is waiting for
+    @Override
+    public synchronized boolean onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        int index = indexOf(gatt);
+        if(index != -1 && characteristic.getUuid().equals(uuid)) {
+            answered(index, status == BluetoothGatt.GATT_SUCCESS);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        int index = indexOf(gatt);
+        if(index != -1 && newState != BluetoothProfile.STATE_CONNECTED) {
+            answered(index, false);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        return true;
+    }
+
+    @Override
+    public boolean onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        return true;
+    }
+
+    private void answered(int index, boolean succeeded) {
+        if(finished || !pending[index]) {
+            return;
+        }
+        pending[index] = false;
+        completedAt[index] = SystemClock.elapsedRealtimeNanos();
+        success[index] = succeeded;
+        outstanding -= 1;
+        // Complete here rather than returning false, so the last write isn't broadcast on its own
+        if(outstanding == 0) {
+            finish();
+            service.operationComplete();
+        }
+    }
+
+    @Override
+    public boolean ownsGatt(BluetoothGatt gatt) {
+        return gatt != null && indexOf(gatt) != -1;
+    }
+
+    private synchronized void timeout() {
+        if(finished) {
+            return;
+        }
+        Timber.w("Group write timed out with %d outstanding", outstanding);
+        finish();
+        if(service.currentOperation() == this) {
+            service.operationComplete();
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        handler.removeCallbacks(timeoutTask);
+        final Result result = new Result(connections, issuedAt, completedAt, success);
+        if(listener != null) {
+            handler.post(() -> listener.groupWriteComplete(result));
+        }
+    }
+
+    private int indexOf(BluetoothGatt gatt) {
+        for(int i = 0; i < connections.size(); i++) {
+            if(connections.get(i).gatt == gatt) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,6 +1,8 @@
 package com.sampullman.ble.operation;
 
 import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 
 import com.sampullman.ble.BluetoothLeService;
 
@@ -15,5 +17,74 @@ public abstract class LeOperation {
 
     public BluetoothGatt getGatt() { return gatt; }
 
+    /**
+     * @return True if callbacks from this GATT client belong to the operation. Late callbacks
+     *         from other clients, e.g. after an operation timed out, must not complete it
+     */
+    public boolean ownsGatt(BluetoothGatt gatt) {
+        return gatt != null && gatt == this.gatt;
+    }
+
     public abstract boolean execute(BluetoothLeService service);
+
+    /**
+     * Called from the GATT callback thread when the connection state of a client this operation
+     * owns changes, usually a disconnect. Operations with timers should cancel them here when
+     * returning false
+     *
+     * @return True if the operation is still in progress, false to complete it
+     */
+    public boolean onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        return false;
+    }
+
+    /**
+     * Called from the GATT callback thread when a descriptor write completes while this
+     * operation is at the head of the queue. Multi-step operations issue their next request here.
+     *
+     * @return True if the operation is still in progress, false to complete it
+     */
+    public boolean onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        return false;
+    }
+
+    /**
+     * Called from the GATT callback thread when a characteristic write completes while this
+     * operation is at the head of the queue. When this returns true the write isn't broadcast
+     *
+     * @return True if the operation is still in progress, false to complete it
+     */
+    public boolean onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        return false;
+    }
+
+    /**
+     * Called from the GATT callback thread when a characteristic read completes while this
+     * operation is at the head of the queue. The value is delivered to listeners either way
+     *
+     * @return True if the operation is still in progress, false to complete it
+     */
+    public boolean onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        return false;
+    }
+
+    /**
+     * Called from the GATT callback thread when the MTU changes. The peer can change it at
+     * any time, so only operations that requested an MTU should return false here
+     *
+     * @return True if the operation is still in progress, false to complete it
+     */
+    public boolean onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        return true;
+    }
+
+    /**
+     * Called from the GATT callback thread when a reliable write is executed or aborted.
+     * Only operations that started a reliable write should return false here
+     *
+     * @return True if the operation is still in progress, false to complete it
+     */
+    public boolean onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+        return true;
+    }
 }
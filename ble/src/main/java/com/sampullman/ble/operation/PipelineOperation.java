@@ -0,0 +1,371 @@
+package com.sampullman.ble.operation;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.sampullman.ble.BluetoothLeService;
+import com.sampullman.ble.LeConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Runs an ordered list of steps on one connection as a single queued operation, such as
+ * MTU exchange, subscriptions, config reads and a start command. Each step is issued directly
+ * from the previous step's GATT callback, without going back through the app or the queue.
+ * Steps can be skipped by a condition on earlier results, and a failed step either aborts
+ * the pipeline or is skipped over. Subscriptions made here aren't restored after a reconnect;
+ * use SubscriptionSet for those.
+ */
+public class PipelineOperation extends LeOperation {
+    public static final long DEFAULT_STEP_TIMEOUT_MS = 5000;
+
+    // Failure policies
+    public static final int ABORT = 0, CONTINUE = 1;
+
+    // Step results
+    public static final int NOT_RUN = 0, SKIPPED = 1, SUCCEEDED = 2, FAILED = 3;
+
+    private static final int STEP_MTU = 1, STEP_SUBSCRIBE = 2, STEP_READ = 3, STEP_WRITE = 4;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LeConnection connection;
+    private final Listener listener;
+    private final List<Step> steps = new ArrayList<>();
+    private long stepTimeoutMs = DEFAULT_STEP_TIMEOUT_MS;
+    private BluetoothLeService service;
+    private Result result;
+    private int index;
+    private long startedAt, stepStartedAt;
+    private boolean finished = false;
+    private final Runnable timeoutTask = this::stepTimeout;
+
+    public interface Listener {
+        /**
+         * Called on the main thread when every step has run or the pipeline aborted
+         */
+        void pipelineComplete(Result result);
+    }
+
+    public interface Condition {
+        /**
+         * Called from the GATT callback thread before a step is issued
+         *
+         * @return False to skip the step
+         */
+        boolean shouldRun(Result results);
+    }
+
+    public static class Step {
+        final int type;
+        final UUID serviceUuid, uuid;
+        final byte[] data;
+        final int mtu;
+        Condition condition;
+        int failurePolicy = ABORT;
+
+        Step(int type, UUID serviceUuid, UUID uuid, byte[] data, int mtu) {
+            this.type = type;
+            this.serviceUuid = serviceUuid;
+            this.uuid = uuid;
+            this.data = data;
+            this.mtu = mtu;
+        }
+
+        /**
+         * Runs the step only if the condition holds for the results so far
+         */
+        public Step when(Condition condition) {
+            this.condition = condition;
+            return this;
+        }
+
+        /**
+         * @param policy ABORT, the default, or CONTINUE
+         */
+        public Step onFailure(int policy) {
+            this.failurePolicy = policy;
+            return this;
+        }
+    }
+
+    public static class Result {
+        private final int[] status;
+        private final long[] latencyNanos;
+        private final byte[][] values;
+        private long totalNanos = 0;
+        private int mtu = 0;
+        private boolean aborted = false;
+
+        Result(int size) {
+            status = new int[size];
+            latencyNanos = new long[size];
+            values = new byte[size][];
+        }
+
+        public int getStepCount() {
+            return status.length;
+        }
+
+        /**
+         * @return NOT_RUN, SKIPPED, SUCCEEDED or FAILED
+         */
+        public int getStatus(int step) {
+            return status[step];
+        }
+
+        /**
+         * @return Time from issuing a step to its callback, or 0 if it didn't run
+         */
+        public long getLatencyNanos(int step) {
+            return latencyNanos[step];
+        }
+
+        /**
+         * @return The value read by a read step, or null
+         */
+        public byte[] getValue(int step) {
+            return values[step];
+        }
+
+        /**
+         * @return The MTU negotiated by an MTU step, or 0
+         */
+        public int getMtu() {
+            return mtu;
+        }
+
+        public long getTotalLatencyNanos() {
+            return totalNanos;
+        }
+
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        /**
+         * @return True if every step that ran succeeded
+         */
+        public boolean isSuccess() {
+            if(aborted) {
+                return false;
+            }
+            for(int s : status) {
+                if(s == FAILED) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public PipelineOperation(LeConnection connection, Listener listener) {
+        super();
+        this.connection = connection;
+        this.listener = listener;
+    }
+
+    public void setStepTimeoutMs(long stepTimeoutMs) {
+        this.stepTimeoutMs = stepTimeoutMs;
+    }
+
+    public Step requestMtu(int mtu) {
+        return add(new Step(STEP_MTU, null, null, null, mtu));
+    }
+
+    /**
+     * @param value BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, ENABLE_INDICATION_VALUE
+     *              or DISABLE_NOTIFICATION_VALUE
+     */
+    public Step subscribe(UUID serviceUuid, UUID uuid, byte[] value) {
+        return add(new Step(STEP_SUBSCRIBE, serviceUuid, uuid, value, 0));
+    }
+
+    public Step read(UUID serviceUuid, UUID uuid) {
+        return add(new Step(STEP_READ, serviceUuid, uuid, null, 0));
+    }
+
+    public Step write(UUID serviceUuid, UUID uuid, byte[] data) {
+        return add(new Step(STEP_WRITE, serviceUuid, uuid, data, 0));
+    }
+
+    private Step add(Step step) {
+        steps.add(step);
+        return step;
+    }
+
+    @Override
+    public synchronized boolean execute(BluetoothLeService service) {
+        this.service = service;
+        // Bind to the GATT client at execution, since the pipeline may be queued before connecting
+        this.gatt = connection.gatt;
+        result = new Result(steps.size());
+        startedAt = SystemClock.elapsedRealtimeNanos();
+        index = -1;
+        if(gatt == null) {
+            Timber.e("Pipeline on %s without a connection", connection.getName());
+            result.aborted = true;
+            finish();
+            return false;
+        }
+        return advance();
+    }
+
+    @Override
+    public synchronized boolean onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        if(!isCurrent(gatt, STEP_MTU, null)) {
+            return true;
+        }
+        if(status == BluetoothGatt.GATT_SUCCESS) {
+            result.mtu = mtu;
+        }
+        return stepComplete(status == BluetoothGatt.GATT_SUCCESS, null);
+    }
+
+    @Override
+    public synchronized boolean onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        if(!isCurrent(gatt, STEP_SUBSCRIBE, descriptor.getCharacteristic().getUuid())) {
+            return true;
+        }
+        return stepComplete(status == BluetoothGatt.GATT_SUCCESS, null);
+    }
+
+    @Override
+    public synchronized boolean onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        if(!isCurrent(gatt, STEP_READ, characteristic.getUuid())) {
+            return true;
+        }
+        byte[] value = characteristic.getValue();
+        boolean success = status == BluetoothGatt.GATT_SUCCESS;
+        return stepComplete(success, (success && value != null) ? value.clone() : null);
+    }
+
+    @Override
+    public synchronized boolean onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        if(!isCurrent(gatt, STEP_WRITE, characteristic.getUuid())) {
+            return true;
+        }
+        return stepComplete(status == BluetoothGatt.GATT_SUCCESS, null);
+    }
+
+    @Override
+    public synchronized boolean onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if(finished) {
+            return false;
+        }
+        if(gatt != this.gatt || newState == BluetoothProfile.STATE_CONNECTED) {
+            return true;
+        }
+        Timber.w("Pipeline aborted at step %d, disconnected", index);
+        if(index >= 0 && index < steps.size()) {
+            result.latencyNanos[index] = SystemClock.elapsedRealtimeNanos() - stepStartedAt;
+            result.status[index] = FAILED;
+        }
+        result.aborted = true;
+        finish();
+        return false;
+    }
+
+    private boolean isCurrent(BluetoothGatt gatt, int type, UUID uuid) {
+        if(finished || gatt != this.gatt || index < 0 || index >= steps.size()) {
+            return false;
+        }
+        Step step = steps.get(index);
+        return step.type == type && (uuid == null || uuid.equals(step.uuid));
+    }
+
+    private synchronized void stepTimeout() {
+        if(finished) {
+            return;
+        }
+        Timber.w("Pipeline step %d timed out", index);
+        if(!stepComplete(false, null) && service.currentOperation() == this) {
+            service.operationComplete();
+        }
+    }
+
+    // Records the current step. Returns true if another step is in progress
+    private boolean stepComplete(boolean success, byte[] value) {
+        handler.removeCallbacks(timeoutTask);
+        result.latencyNanos[index] = SystemClock.elapsedRealtimeNanos() - stepStartedAt;
+        result.status[index] = success ? SUCCEEDED : FAILED;
+        result.values[index] = value;
+        if(!success && steps.get(index).failurePolicy == ABORT) {
+            result.aborted = true;
+            finish();
+            return false;
+        }
+        return advance();
+    }
+
+    // Issues the next step that should run. Returns false when the pipeline is done
+    private boolean advance() {
+        while(++index < steps.size()) {
+            Step step = steps.get(index);
+            if(step.condition != null && !step.condition.shouldRun(result)) {
+                result.status[index] = SKIPPED;
+                continue;
+            }
+            stepStartedAt = SystemClock.elapsedRealtimeNanos();
+            if(issue(step)) {
+                handler.postDelayed(timeoutTask, stepTimeoutMs);
+                return true;
+            }
+            Timber.e("Pipeline step %d could not be issued", index);
+            result.status[index] = FAILED;
+            if(step.failurePolicy == ABORT) {
+                result.aborted = true;
+                break;
+            }
+        }
+        finish();
+        return false;
+    }
+
+    @SuppressLint("MissingPermission")
+    private boolean issue(Step step) {
+        if(step.type == STEP_MTU) {
+            return gatt.requestMtu(step.mtu);
+        }
+        BluetoothGattService gattService = gatt.getService(step.serviceUuid);
+        BluetoothGattCharacteristic cha = (gattService == null) ? null : gattService.getCharacteristic(step.uuid);
+        if(cha == null) {
+            Timber.e("Characteristic not found! %s", step.uuid);
+            return false;
+        }
+        if(step.type == STEP_READ) {
+            return gatt.readCharacteristic(cha);
+        } else if(step.type == STEP_WRITE) {
+            cha.setValue(step.data);
+            return gatt.writeCharacteristic(cha);
+        }
+        boolean enabled = step.data != BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        gatt.setCharacteristicNotification(cha, enabled);
+        BluetoothGattDescriptor desc = cha.getDescriptor(CharacteristicRequest.CHAR_NOTIFICATION_DESCRIPTOR_UUID);
+        if(desc == null) {
+            return false;
+        }
+        desc.setValue(step.data);
+        return CharacteristicRequest.descriptorWorkaround(gatt, desc);
+    }
+
+    private void finish() {
+        finished = true;
+        handler.removeCallbacks(timeoutTask);
+        result.totalNanos = SystemClock.elapsedRealtimeNanos() - startedAt;
+        final Result finalResult = result;
+        if(listener != null) {
+            handler.post(() -> listener.pipelineComplete(finalResult));
+        }
+    }
+}
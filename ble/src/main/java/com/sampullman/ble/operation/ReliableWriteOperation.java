@@ -0,0 +1,202 @@
+package com.sampullman.ble.operation;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.sampullman.ble.BluetoothLeService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Writes several characteristics atomically with a reliable (prepared) write transaction.
+ * Each prepared value echoed by the peer is compared with what was sent; on a mismatch or
+ * failed write the transaction is aborted and the peer discards all prepared values.
+ * The result and end-to-end latency, from creation to completion, are reported on the main thread.
+ * If the peer doesn't answer within the timeout, the transaction is aborted and fails.
+ */
+public class ReliableWriteOperation extends LeOperation {
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Write> writes = new ArrayList<>();
+    private final Listener listener;
+    private BluetoothLeService service;
+    private int index = 0;
+    private boolean executing = false, finished = false;
+    private long timeoutMs = DEFAULT_TIMEOUT_MS;
+    private final Runnable timeoutTask = this::timeout;
+    private final long createdAt;
+    private long startedAt;
+
+    public interface Listener {
+        /**
+         * @param success True if every write was echoed correctly and the transaction executed
+         * @param latencyNanos Time from creating the transaction to its completion
+         */
+        void transactionComplete(ReliableWriteOperation transaction, boolean success, long latencyNanos);
+    }
+
+    private static class Write {
+        final UUID serviceUuid, uuid;
+        final byte[] data;
+
+        Write(UUID serviceUuid, UUID uuid, byte[] data) {
+            this.serviceUuid = serviceUuid;
+            this.uuid = uuid;
+            this.data = data;
+        }
+    }
+
+    public ReliableWriteOperation(BluetoothGatt gatt, Listener listener) {
+        super(gatt);
+        this.listener = listener;
+        this.createdAt = SystemClock.elapsedRealtimeNanos();
+    }
+
+    public ReliableWriteOperation add(UUID serviceUuid, UUID uuid, byte[] data) {
+        writes.add(new Write(serviceUuid, uuid, data));
+        return this;
+    }
+
+    public int size() {
+        return writes.size();
+    }
+
+    /**
+     * @param timeoutMs Time allowed for the whole transaction, from its first write to execution
+     */
+    public void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return Time spent executing, excluding time waiting in the queue
+     */
+    public long getExecuteNanos() {
+        return (startedAt == 0) ? 0 : SystemClock.elapsedRealtimeNanos() - startedAt;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public synchronized boolean execute(BluetoothLeService service) {
+        this.service = service;
+        BluetoothGatt gatt = getGatt();
+        startedAt = SystemClock.elapsedRealtimeNanos();
+        index = 0;
+        executing = false;
+        finished = false;
+
+        if(gatt == null || writes.isEmpty() || !gatt.beginReliableWrite()) {
+            Timber.e("Unable to begin reliable write");
+            finish(false);
+            return false;
+        }
+        if(!writeNext()) {
+            gatt.abortReliableWrite();
+            finish(false);
+            return false;
+        }
+        handler.postDelayed(timeoutTask, timeoutMs);
+        return true;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public synchronized boolean onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        if(finished || executing || index >= writes.size()) {
+            return true;
+        }
+        Write write = writes.get(index);
+        if(status != BluetoothGatt.GATT_SUCCESS || !Arrays.equals(write.data, characteristic.getValue())) {
+            Timber.w("Reliable write of %s failed, status:%d. Rolling back", write.uuid, status);
+            abort();
+            return true;
+        }
+        index += 1;
+        if(index < writes.size()) {
+            if(!writeNext()) {
+                abort();
+            }
+        } else {
+            executing = true;
+            if(!gatt.executeReliableWrite()) {
+                abort();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+        if(finished || !executing) {
+            return true;
+        }
+        finish(status == BluetoothGatt.GATT_SUCCESS);
+        return false;
+    }
+
+    @Override
+    public synchronized boolean onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if(!finished) {
+            Timber.w("Reliable write interrupted by a connection change");
+            finish(false);
+        }
+        return false;
+    }
+
+    @SuppressLint("MissingPermission")
+    private synchronized void timeout() {
+        if(finished) {
+            return;
+        }
+        Timber.w("Reliable write timed out at write %d of %d", index, writes.size());
+        getGatt().abortReliableWrite();
+        executing = false;
+        finish(false);
+        if(service.currentOperation() == this) {
+            service.operationComplete();
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private boolean writeNext() {
+        BluetoothGatt gatt = getGatt();
+        Write write = writes.get(index);
+        BluetoothGattService service = gatt.getService(write.serviceUuid);
+        BluetoothGattCharacteristic cha = (service == null) ? null : service.getCharacteristic(write.uuid);
+        if(cha == null) {
+            Timber.e("Characteristic not found! %s", write.uuid);
+            return false;
+        }
+        cha.setValue(write.data);
+        return gatt.writeCharacteristic(cha);
+    }
+
+    // The abort callback can't be relied on, so complete the operation now
+    @SuppressLint("MissingPermission")
+    private void abort() {
+        executing = false;
+        getGatt().abortReliableWrite();
+        finish(false);
+        service.operationComplete();
+    }
+
+    private void finish(final boolean success) {
+        finished = true;
+        handler.removeCallbacks(timeoutTask);
+        final long latency = SystemClock.elapsedRealtimeNanos() - createdAt;
+        if(listener != null) {
+            handler.post(() -> listener.transactionComplete(this, success, latency));
+        }
+    }
+}
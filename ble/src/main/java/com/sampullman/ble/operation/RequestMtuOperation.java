@@ -1,13 +1,8 @@
 package com.sampullman.ble.operation;
 
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 
 import com.sampullman.ble.BluetoothLeService;
-import com.sampullman.ble.LeConnection;
-import com.sampullman.ble.GattCallback;
-
-import timber.log.Timber;
 
 public class RequestMtuOperation extends LeOperation {
     private final int mtu;
@@ -18,9 +13,11 @@ public class RequestMtuOperation extends LeOperation {
     }
 
     public boolean execute(BluetoothLeService service) {
-        GattCallback gattCallback = new GattCallback(service);
-        gattCallback.setGatt(gatt);
-        gatt.requestMtu(this.mtu);
-        return true;
+        return gatt != null && gatt.requestMtu(this.mtu);
+    }
+
+    @Override
+    public boolean onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        return gatt != getGatt();
     }
 }
@@ -0,0 +1,106 @@
+package com.sampullman.ble.operation;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import com.sampullman.ble.BluetoothLeService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Writes a set of CCCDs as one queued operation. Each write is issued directly from the
+ * previous write's callback, rather than going back through the operation queue.
+ */
+public class SubscribeOperation extends LeOperation {
+    private final List<Entry> entries = new ArrayList<>();
+    private final Callback callback;
+    private int index = 0;
+
+    public interface Callback {
+        /**
+         * Called from the GATT callback thread after each CCCD write
+         */
+        void subscriptionWritten(UUID serviceUuid, UUID uuid, byte[] value, boolean success);
+    }
+
+    private static class Entry {
+        final UUID serviceUuid, uuid;
+        final byte[] value;
+
+        Entry(UUID serviceUuid, UUID uuid, byte[] value) {
+            this.serviceUuid = serviceUuid;
+            this.uuid = uuid;
+            this.value = value;
+        }
+    }
+
+    public SubscribeOperation(BluetoothGatt gatt, Callback callback) {
+        super(gatt);
+        this.callback = callback;
+    }
+
+    /**
+     * @param value BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, ENABLE_INDICATION_VALUE
+     *              or DISABLE_NOTIFICATION_VALUE
+     */
+    public void add(UUID serviceUuid, UUID uuid, byte[] value) {
+        entries.add(new Entry(serviceUuid, uuid, value));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public boolean execute(BluetoothLeService service) {
+        index = 0;
+        return writeNext();
+    }
+
+    @Override
+    public boolean onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        if(gatt != getGatt() || index >= entries.size()) {
+            return false;
+        }
+        Entry entry = entries.get(index);
+        callback.subscriptionWritten(entry.serviceUuid, entry.uuid, entry.value,
+                status == BluetoothGatt.GATT_SUCCESS);
+        index += 1;
+        return writeNext();
+    }
+
+    // Issues the next write that can be started. Returns false when none are left
+    @SuppressLint("MissingPermission")
+    private boolean writeNext() {
+        BluetoothGatt gatt = getGatt();
+        while(gatt != null && index < entries.size()) {
+            Entry entry = entries.get(index);
+            BluetoothGattDescriptor desc = null;
+            BluetoothGattService service = gatt.getService(entry.serviceUuid);
+            BluetoothGattCharacteristic cha = (service == null) ? null : service.getCharacteristic(entry.uuid);
+
+            if(cha != null) {
+                boolean enabled = entry.value != BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+                gatt.setCharacteristicNotification(cha, enabled);
+                desc = cha.getDescriptor(CharacteristicRequest.CHAR_NOTIFICATION_DESCRIPTOR_UUID);
+            }
+            if(desc != null) {
+                desc.setValue(entry.value);
+                if(CharacteristicRequest.descriptorWorkaround(gatt, desc)) {
+                    return true;
+                }
+            }
+            Timber.e("Unable to write CCCD for %s", entry.uuid);
+            callback.subscriptionWritten(entry.serviceUuid, entry.uuid, entry.value, false);
+            index += 1;
+        }
+        return false;
+    }
+}
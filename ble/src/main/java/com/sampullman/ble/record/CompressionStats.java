@@ -0,0 +1,63 @@
+package com.sampullman.ble.record;
+
+/**
+ * Running totals for notification encoding, used to judge whether an encoding pays off
+ * for a stream. Ratios compare payload bytes to everything stored, including record headers.
+ */
+public class CompressionStats {
+    private long rawBytes, storedBytes, encodeNanos;
+    private long decodedBytes, decodeNanos;
+
+    synchronized void encoded(long raw, long nanos) {
+        rawBytes += raw;
+        encodeNanos += nanos;
+    }
+
+    synchronized void stored(long bytes, long nanos) {
+        storedBytes += bytes;
+        encodeNanos += nanos;
+    }
+
+    synchronized void decoded(long raw, long nanos) {
+        decodedBytes += raw;
+        decodeNanos += nanos;
+    }
+
+    void addDecoding(CompressionStats other) {
+        long bytes, nanos;
+        synchronized(other) {
+            bytes = other.decodedBytes;
+            nanos = other.decodeNanos;
+        }
+        decoded(bytes, nanos);
+    }
+
+    public synchronized long getRawBytes() {
+        return rawBytes;
+    }
+
+    public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * @return Payload bytes per stored byte, 0 before anything is stored
+     */
+    public synchronized double getCompressionRatio() {
+        return (storedBytes == 0) ? 0 : (double) rawBytes / storedBytes;
+    }
+
+    /**
+     * @return Payload bytes encoded per second of encoding and compression time
+     */
+    public synchronized double getEncodeThroughput() {
+        return (encodeNanos == 0) ? 0 : rawBytes * 1e9 / encodeNanos;
+    }
+
+    /**
+     * @return Payload bytes decoded per second of decompression and decoding time
+     */
+    public synchronized double getDecodeThroughput() {
+        return (decodeNanos == 0) ? 0 : decodedBytes * 1e9 / decodeNanos;
+    }
+}
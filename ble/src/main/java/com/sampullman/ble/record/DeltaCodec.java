@@ -0,0 +1,77 @@
+package com.sampullman.ble.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Delta and zigzag varint coding of little-endian sensor samples.
+ * Each sample is stored as the difference from the same sample in the stream's previous
+ * payload, so slowly changing channels take one or two bytes per sample regardless of width.
+ * Bytes left over at the end of a payload are coded as single byte samples.
+ */
+final class DeltaCodec {
+
+    private DeltaCodec() {}
+
+    static int maxEncodedSize(int length) {
+        return 5 + 5 * length;
+    }
+
+    static void encode(byte[] data, byte[] previous, int sampleSize, ByteBuffer out) {
+        writeVarint(out, data.length);
+        int i = 0;
+        while(i < data.length) {
+            int size = (data.length - i >= sampleSize) ? sampleSize : 1;
+            int delta = sample(data, i, size) - sample(previous, i, size);
+            writeVarint(out, (delta << 1) ^ (delta >> 31));
+            i += size;
+        }
+    }
+
+    static byte[] decode(ByteBuffer in, byte[] previous, int sampleSize) {
+        byte[] data = new byte[readVarint(in)];
+        int i = 0;
+        while(i < data.length) {
+            int size = (data.length - i >= sampleSize) ? sampleSize : 1;
+            int zigzag = readVarint(in);
+            int value = sample(previous, i, size) + ((zigzag >>> 1) ^ -(zigzag & 1));
+            for(int b = 0; b < size; b++) {
+                data[i + b] = (byte) (value >> (8 * b));
+            }
+            i += size;
+        }
+        return data;
+    }
+
+    // Sign extended sample, or 0 where the previous payload was shorter
+    private static int sample(byte[] data, int offset, int size) {
+        if(data == null || offset + size > data.length) {
+            return 0;
+        }
+        int value = 0;
+        for(int b = size - 1; b >= 0; b--) {
+            value = (value << 8) | (data[offset + b] & 0xFF);
+        }
+        int shift = 32 - 8 * size;
+        return (value << shift) >> shift;
+    }
+
+    private static void writeVarint(ByteBuffer out, int value) {
+        while((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
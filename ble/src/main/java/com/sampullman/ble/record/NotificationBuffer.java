@@ -0,0 +1,179 @@
+package com.sampullman.ble.record;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import timber.log.Timber;
+
+/**
+ * Holds notifications in memory in the segment record format, for consumers that need to
+ * keep a long backlog. Records collect in a block that is deflated when full, and payloads
+ * can be delta varint coded per characteristic. Blocks decode independently, so when the
+ * buffer exceeds maxBytes the oldest block is dropped.
+ */
+public class NotificationBuffer {
+    public static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+
+    private final int blockSize;
+    private final long maxBytes;
+    private final RecordWriter records = new RecordWriter();
+    private final CompressionStats stats = new CompressionStats();
+    private final ArrayDeque<byte[]> blocks = new ArrayDeque<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private ByteBuffer current;
+    private ByteBuffer compressed;
+    private boolean compress = true;
+    private long storedBytes = 0;
+    private int droppedBlocks = 0;
+
+    public interface Listener {
+        void notification(String address, String uuid, long timestamp, byte[] data);
+    }
+
+    public NotificationBuffer(long maxBytes) {
+        this(DEFAULT_BLOCK_SIZE, maxBytes);
+    }
+
+    /**
+     * @param blockSize Size of uncompressed records in each block. Larger blocks compress better
+     * @param maxBytes Limit on stored bytes, after which the oldest blocks are dropped
+     */
+    public NotificationBuffer(int blockSize, long maxBytes) {
+        this.blockSize = blockSize;
+        this.maxBytes = maxBytes;
+        this.current = ByteBuffer.allocate(blockSize);
+    }
+
+    /**
+     * @see NotificationRecorder#setSampleEncoding(String, int)
+     */
+    public synchronized void setSampleEncoding(String uuid, int sampleSize) {
+        seal();
+        records.setSampleEncoding(uuid, sampleSize);
+    }
+
+    /**
+     * Deflates full blocks, on by default. Compression runs on the thread that fills the block
+     */
+    public synchronized void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    public synchronized void add(String address, String uuid, long timestamp, byte[] data) {
+        long start = System.nanoTime();
+        ByteBuffer encoded = records.encode(address, uuid, timestamp, data);
+        if(current.position() > 0 && current.remaining() < encoded.remaining()) {
+            seal();
+            // Streams are redefined in the new block
+            encoded = records.encode(address, uuid, timestamp, data);
+        }
+        if(current.capacity() < encoded.remaining()) {
+            current = ByteBuffer.allocate(encoded.remaining());
+        }
+        current.put(encoded);
+        stats.encoded(data.length, System.nanoTime() - start);
+    }
+
+    /**
+     * @return Bytes held, compressed blocks plus the block being filled
+     */
+    public synchronized long getByteCount() {
+        return storedBytes + current.position();
+    }
+
+    /**
+     * @return Number of blocks dropped because the buffer was full
+     */
+    public synchronized int getDroppedBlockCount() {
+        return droppedBlocks;
+    }
+
+    public CompressionStats getStats() {
+        return stats;
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+        storedBytes = 0;
+        current.clear();
+        records.reset();
+    }
+
+    /**
+     * Decodes and removes everything buffered, oldest first
+     *
+     * @return The number of notifications delivered
+     */
+    public int drain(Listener listener) {
+        List<InputStream> drained = new ArrayList<>();
+        synchronized(this) {
+            seal();
+            for(byte[] block : blocks) {
+                drained.add(new ByteArrayInputStream(block));
+            }
+            blocks.clear();
+            storedBytes = 0;
+        }
+        if(drained.isEmpty()) {
+            return 0;
+        }
+        int count = 0;
+        SequenceInputStream in = new SequenceInputStream(Collections.enumeration(drained));
+        try(SegmentReader reader = new SegmentReader(Channels.newChannel(in), false, blockSize)) {
+            SegmentReader.Record record;
+            while((record = reader.next()) != null) {
+                listener.notification(record.getAddress(), record.getUuid(), record.getTimestamp(), record.getData());
+                count += 1;
+            }
+            stats.addDecoding(reader.getStats());
+        } catch(IOException e) {
+            Timber.e(e, "Failed to decode buffered notifications");
+        }
+        return count;
+    }
+
+    // Closes the current block, compressing it, and drops old blocks over the limit
+    private void seal() {
+        if(current.position() == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        current.flip();
+        ByteBuffer out = current;
+        if(compress) {
+            int size = SegmentFormat.BLOCK_HEADER_SIZE + current.remaining();
+            if(compressed == null || compressed.capacity() < size) {
+                compressed = ByteBuffer.allocate(size);
+            }
+            if(RecordWriter.compress(deflater, current, compressed)) {
+                out = compressed;
+            }
+        }
+        byte[] block = new byte[out.remaining()];
+        out.get(block);
+        blocks.add(block);
+        storedBytes += block.length;
+        stats.stored(block.length, System.nanoTime() - start);
+
+        if(current.capacity() > blockSize) {
+            current = ByteBuffer.allocate(blockSize);
+        } else {
+            current.clear();
+        }
+        records.reset();
+
+        while(storedBytes > maxBytes && blocks.size() > 1) {
+            storedBytes -= blocks.poll().length;
+            droppedBlocks += 1;
+        }
+    }
+}
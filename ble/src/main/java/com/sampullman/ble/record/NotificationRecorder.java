@@ -0,0 +1,287 @@
+package com.sampullman.ble.record;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+
+import timber.log.Timber;
+
+/**
+ * Appends timestamped notification payloads to length-prefixed segment files.
+ * record() only copies into an in-memory buffer. Full buffers are written by a background
+ * thread with NIO. The file is synced at most once per syncIntervalMs rather than per record.
+ * A new segment is started when the current one reaches maxSegmentBytes.
+ * Payloads of selected characteristics can be delta varint coded, and each buffer can be
+ * deflated into a block before it is written.
+ * Read recordings back with SegmentReader.
+ */
+public class NotificationRecorder {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 5000;
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final long syncIntervalMs;
+    private final int bufferSize;
+    private final HandlerThread writerThread;
+    private final Handler writer;
+
+    // Producer state, guarded by this
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private final RecordWriter records = new RecordWriter();
+    private final CompressionStats stats = new CompressionStats();
+    private volatile boolean compress = false;
+    private ByteBuffer buffer;
+    private long segmentIndex;
+    private long segmentBytes;
+    private boolean closed = false;
+
+    // Writer thread state
+    private FileChannel channel;
+    private long channelSegment = -1;
+    private boolean unsynced = false;
+    private Deflater deflater;
+    private ByteBuffer block;
+
+    private final Runnable syncTask = new Runnable() {
+        @Override
+        public void run() {
+            // Sync after the flushed buffer, which is queued behind this task, has been written
+            flush();
+            writer.post(NotificationRecorder.this::sync);
+            if(!closed) {
+                writer.postDelayed(this, NotificationRecorder.this.syncIntervalMs);
+            }
+        }
+    };
+
+    public NotificationRecorder(File directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_SYNC_INTERVAL_MS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param directory Segment files are created here, continuing after any existing segments
+     * @param maxSegmentBytes Size of uncompressed records at which a new segment is started
+     * @param syncIntervalMs Maximum time buffered records wait before being written and synced
+     * @param bufferSize Size of each in-memory buffer. Larger payloads get their own buffer
+     */
+    public NotificationRecorder(File directory, long maxSegmentBytes, long syncIntervalMs, int bufferSize) {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.syncIntervalMs = syncIntervalMs;
+        this.bufferSize = bufferSize;
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            Timber.e("Unable to create recording directory %s", directory);
+        }
+        this.segmentIndex = nextSegmentIndex(directory);
+        this.buffer = ByteBuffer.allocate(bufferSize);
+
+        writerThread = new HandlerThread("NotificationRecorder", Process.THREAD_PRIORITY_BACKGROUND);
+        writerThread.start();
+        writer = new Handler(writerThread.getLooper());
+        writer.postDelayed(syncTask, syncIntervalMs);
+    }
+
+    // One past the highest existing segment, since retention may have deleted older ones
+    static long nextSegmentIndex(File directory) {
+        long next = 0;
+        for(File segment : SegmentReader.listSegments(directory)) {
+            next = Math.max(next, SegmentFormat.segmentIndex(segment.getName()) + 1);
+        }
+        return next;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Stores a characteristic's payloads as deltas from its previous payload, which suits
+     * sensor samples that change slowly between notifications
+     *
+     * @param sampleSize Width of the little-endian samples in the payload: 1, 2 or 4. 0 stores raw payloads
+     */
+    public synchronized void setSampleEncoding(String uuid, int sampleSize) {
+        records.setSampleEncoding(uuid, sampleSize);
+    }
+
+    /**
+     * Deflates buffered records before they are written. Compression runs on the writer thread
+     */
+    public void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    public CompressionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Appends a notification. Cheap enough to call for every packet on the main thread
+     */
+    public synchronized void record(String address, String uuid, long timestamp, byte[] data) {
+        if(closed) {
+            return;
+        }
+        long start = System.nanoTime();
+        ByteBuffer encoded = records.encode(address, uuid, timestamp, data);
+        if(segmentBytes > 0 && segmentBytes + encoded.remaining() > maxSegmentBytes) {
+            startSegment();
+            encoded = records.encode(address, uuid, timestamp, data);
+        }
+        ensureCapacity(encoded.remaining());
+        segmentBytes += encoded.remaining();
+        buffer.put(encoded);
+        stats.encoded(data.length, System.nanoTime() - start);
+    }
+
+    /**
+     * Writes buffered records without waiting for the sync interval
+     */
+    public void flush() {
+        submit();
+    }
+
+    /**
+     * Writes and syncs everything recorded so far, then stops the writer thread
+     */
+    public void close() {
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+        }
+        submit();
+        writer.post(() -> {
+            sync();
+            closeChannel();
+            if(deflater != null) {
+                deflater.end();
+            }
+            writerThread.quitSafely();
+        });
+    }
+
+    private void startSegment() {
+        submitLocked();
+        segmentIndex += 1;
+        segmentBytes = 0;
+        records.reset();
+    }
+
+    private void ensureCapacity(int size) {
+        if(buffer.remaining() < size) {
+            submitLocked();
+            if(buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(size);
+            }
+        }
+    }
+
+    private synchronized void submit() {
+        submitLocked();
+    }
+
+    // Hands the current buffer to the writer thread and takes a free one
+    private void submitLocked() {
+        if(buffer.position() == 0) {
+            return;
+        }
+        final ByteBuffer full = buffer;
+        final long segment = segmentIndex;
+        full.flip();
+        writer.post(() -> write(full, segment));
+
+        ByteBuffer free = freeBuffers.poll();
+        buffer = (free != null) ? free : ByteBuffer.allocate(bufferSize);
+    }
+
+    private synchronized void recycle(ByteBuffer used) {
+        if(used.capacity() == bufferSize && freeBuffers.size() < 4) {
+            used.clear();
+            freeBuffers.add(used);
+        }
+    }
+
+    // Writer thread
+    private void write(ByteBuffer data, long segment) {
+        try {
+            if(segment != channelSegment) {
+                openSegment(segment);
+            }
+            long start = System.nanoTime();
+            ByteBuffer out = compress ? compress(data) : data;
+            long compressNanos = System.nanoTime() - start;
+            stats.stored(out.remaining(), compressNanos);
+            while(out.hasRemaining()) {
+                channel.write(out);
+            }
+            unsynced = true;
+        } catch(IOException e) {
+            Timber.e(e, "Failed to write recording segment %d", segment);
+        }
+        recycle(data);
+    }
+
+    // Writer thread. Returns the block, or the records themselves if they don't compress
+    private ByteBuffer compress(ByteBuffer data) {
+        if(deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        int size = SegmentFormat.BLOCK_HEADER_SIZE + data.remaining();
+        if(block == null || block.capacity() < size) {
+            block = ByteBuffer.allocate(size);
+        }
+        return RecordWriter.compress(deflater, data, block) ? block : data;
+    }
+
+    private void openSegment(long segment) throws IOException {
+        sync();
+        closeChannel();
+        File file = new File(directory, SegmentFormat.segmentName(segment));
+        channel = new FileOutputStream(file, true).getChannel();
+        if(channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(SegmentFormat.HEADER_SIZE);
+            header.putInt(SegmentFormat.MAGIC);
+            header.putShort(SegmentFormat.VERSION);
+            header.flip();
+            while(header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+        channelSegment = segment;
+    }
+
+    private void sync() {
+        if(channel != null && unsynced) {
+            try {
+                channel.force(false);
+                unsynced = false;
+            } catch(IOException e) {
+                Timber.e(e, "Failed to sync recording");
+            }
+        }
+    }
+
+    private void closeChannel() {
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch(IOException e) {
+                Timber.e(e, "Failed to close recording segment");
+            }
+            channel = null;
+            channelSegment = -1;
+        }
+    }
+}
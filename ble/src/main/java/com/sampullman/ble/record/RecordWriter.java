@@ -0,0 +1,135 @@
+package com.sampullman.ble.record;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Serializes notifications into segment records, defining streams and applying per
+ * characteristic sample encoding. Not thread safe.
+ */
+final class RecordWriter {
+    private final Map<String, Integer> sampleSizes = new HashMap<>();
+    private final Map<String, Short> streamIds = new HashMap<>();
+    private final List<Integer> streamSampleSizes = new ArrayList<>();
+    private final List<byte[]> previous = new ArrayList<>();
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+    /**
+     * @param sampleSize 1, 2 or 4 for delta varint coding of samples of that width, 0 for raw
+     */
+    void setSampleEncoding(String uuid, int sampleSize) {
+        if(sampleSize != 0 && sampleSize != 1 && sampleSize != 2 && sampleSize != 4) {
+            throw new IllegalArgumentException("Unsupported sample size " + sampleSize);
+        }
+        if(sampleSize == 0) {
+            sampleSizes.remove(uuid);
+        } else {
+            sampleSizes.put(uuid, sampleSize);
+        }
+        // Streams are redefined with the new encoding
+        reset();
+    }
+
+    /**
+     * Forgets stream definitions, so following records can be decoded on their own
+     */
+    void reset() {
+        streamIds.clear();
+        streamSampleSizes.clear();
+        previous.clear();
+    }
+
+    /**
+     * @return The records for a notification, valid until the next call
+     */
+    ByteBuffer encode(String address, String uuid, long timestamp, byte[] data) {
+        int maxSize = streamRecordSize(address, uuid) + SegmentFormat.ENCODING_RECORD_SIZE
+                + SegmentFormat.DATA_HEADER_SIZE + DeltaCodec.maxEncodedSize(data.length);
+        if(scratch.capacity() < maxSize) {
+            scratch = ByteBuffer.allocate(maxSize);
+        }
+        scratch.clear();
+
+        String key = address + uuid;
+        Short streamId = streamIds.get(key);
+        if(streamId == null) {
+            streamId = (short) streamIds.size();
+            Integer sampleSize = sampleSizes.get(uuid);
+            streamIds.put(key, streamId);
+            streamSampleSizes.add((sampleSize == null) ? 0 : sampleSize);
+            previous.add(null);
+            writeStream(streamId, address, uuid, (sampleSize == null) ? 0 : sampleSize);
+        }
+        int sampleSize = streamSampleSizes.get(streamId);
+
+        scratch.put(SegmentFormat.RECORD_DATA);
+        scratch.putShort(streamId);
+        scratch.putLong(timestamp);
+        if(sampleSize == 0) {
+            scratch.putInt(data.length);
+            scratch.put(data);
+        } else {
+            int lengthPosition = scratch.position();
+            scratch.putInt(0);
+            DeltaCodec.encode(data, previous.get(streamId), sampleSize, scratch);
+            scratch.putInt(lengthPosition, scratch.position() - lengthPosition - 4);
+            previous.set(streamId, data.clone());
+        }
+        scratch.flip();
+        return scratch;
+    }
+
+    private static int streamRecordSize(String address, String uuid) {
+        return 1 + 2 + 1 + address.length() + 1 + uuid.length();
+    }
+
+    private void writeStream(short streamId, String address, String uuid, int sampleSize) {
+        byte[] addressBytes = address.getBytes(SegmentFormat.CHARSET);
+        byte[] uuidBytes = uuid.getBytes(SegmentFormat.CHARSET);
+        scratch.put(SegmentFormat.RECORD_STREAM);
+        scratch.putShort(streamId);
+        scratch.put((byte) addressBytes.length);
+        scratch.put(addressBytes);
+        scratch.put((byte) uuidBytes.length);
+        scratch.put(uuidBytes);
+        if(sampleSize != 0) {
+            scratch.put(SegmentFormat.RECORD_ENCODING);
+            scratch.putShort(streamId);
+            scratch.put((byte) sampleSize);
+        }
+    }
+
+    /**
+     * Deflates a run of records into a RECORD_BLOCK
+     *
+     * @param out Receives the block. Needs BLOCK_HEADER_SIZE + records.remaining() capacity
+     * @return False if compression doesn't make the records smaller
+     */
+    static boolean compress(Deflater deflater, ByteBuffer records, ByteBuffer out) {
+        int length = records.remaining();
+        deflater.reset();
+        deflater.setInput(records.array(), records.arrayOffset() + records.position(), length);
+        deflater.finish();
+
+        out.clear();
+        out.limit(SegmentFormat.BLOCK_HEADER_SIZE + length);
+        out.put(SegmentFormat.RECORD_BLOCK);
+        out.putInt(length);
+        out.putInt(0);
+        int start = out.position();
+        while(!deflater.finished() && out.hasRemaining()) {
+            int count = deflater.deflate(out.array(), out.arrayOffset() + out.position(), out.remaining());
+            out.position(out.position() + count);
+        }
+        if(!deflater.finished()) {
+            return false;
+        }
+        out.putInt(5, out.position() - start);
+        out.flip();
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+package com.sampullman.ble.record;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Layout of recording segment files.
+ *
+ * A segment starts with MAGIC (int) and VERSION (short), followed by records:
+ *   RECORD_STREAM:   type (byte), stream id (short), address length (byte), address,
+ *                    uuid length (byte), uuid
+ *   RECORD_ENCODING: type (byte), stream id (short), sample size (byte). Follows RECORD_STREAM
+ *                    when the stream's payloads are delta varint coded, see DeltaCodec
+ *   RECORD_DATA:     type (byte), stream id (short), timestamp (long), length (int), payload
+ *   RECORD_BLOCK:    type (byte), records length (int), deflated length (int), deflated records
+ * All values are big-endian. Every segment defines the streams it uses, so segments can be
+ * read independently. A truncated final record, e.g. after a crash, is ignored by the reader.
+ * Version 1 segments contain only stream and data records.
+ */
+final class SegmentFormat {
+    static final int MAGIC = 0x424c4553; // "BLES"
+    static final short VERSION = 2;
+    static final short MIN_VERSION = 1;
+    static final int HEADER_SIZE = 6;
+
+    static final byte RECORD_STREAM = 1;
+    static final byte RECORD_DATA = 2;
+    static final byte RECORD_ENCODING = 3;
+    static final byte RECORD_BLOCK = 4;
+
+    static final int ENCODING_RECORD_SIZE = 1 + 2 + 1;
+    static final int BLOCK_HEADER_SIZE = 1 + 4 + 4;
+
+    // type + stream id + timestamp + length
+    static final int DATA_HEADER_SIZE = 1 + 2 + 8 + 4;
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".bin";
+
+    static final Charset CHARSET = Charset.forName("US-ASCII");
+
+    private SegmentFormat() {}
+
+    static String segmentName(long index) {
+        return String.format(Locale.US, "%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return The index in a segment file name, or -1 if the name isn't a segment's
+     */
+    static long segmentIndex(String name) {
+        if(!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+}
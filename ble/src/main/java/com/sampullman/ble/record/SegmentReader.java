@@ -0,0 +1,304 @@
+package com.sampullman.ble.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Sequential reader for segment files written by NotificationRecorder.
+ * Reads through a large buffer and reuses a single Record, so scanning hours of data
+ * allocates only for payloads.
+ */
+public class SegmentReader implements Closeable {
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private final ReadableByteChannel channel;
+    private ByteBuffer buffer;
+    // Either buffer, or the inflated contents of the current block
+    private ByteBuffer source;
+    private ByteBuffer block;
+    private Inflater inflater;
+    private final List<Stream> streams = new ArrayList<>();
+    private final Record record = new Record();
+    private final CompressionStats stats = new CompressionStats();
+    private boolean eof = false;
+
+    private static class Stream {
+        final String address, uuid;
+        int sampleSize = 0;
+        byte[] previous;
+
+        Stream(String address, String uuid) {
+            this.address = address;
+            this.uuid = uuid;
+        }
+    }
+
+    public static class Record {
+        String address;
+        String uuid;
+        long timestamp;
+        byte[] data;
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return The payload. Delta coded streams decode the next payload from it, so don't modify it
+         */
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    /**
+     * @return Segment files in a recording directory, in recording order
+     */
+    public static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) ->
+                name.startsWith(SegmentFormat.SEGMENT_PREFIX) && name.endsWith(SegmentFormat.SEGMENT_SUFFIX));
+        if(files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    public SegmentReader(File segment) throws IOException {
+        this(new FileInputStream(segment).getChannel(), true, READ_BUFFER_SIZE);
+    }
+
+    /**
+     * @param header False to read records that aren't preceded by a segment header
+     */
+    SegmentReader(ReadableByteChannel channel, boolean header, int bufferSize) throws IOException {
+        this.channel = channel;
+        buffer = ByteBuffer.allocate(bufferSize);
+        buffer.flip();
+        source = buffer;
+        if(!header) {
+            return;
+        }
+        if(!fill(SegmentFormat.HEADER_SIZE) || buffer.getInt() != SegmentFormat.MAGIC) {
+            channel.close();
+            throw new IOException("Not a recording segment");
+        }
+        short version = buffer.getShort();
+        if(version < SegmentFormat.MIN_VERSION || version > SegmentFormat.VERSION) {
+            channel.close();
+            throw new IOException("Unsupported segment version " + version);
+        }
+    }
+
+    /**
+     * @return Time spent and bytes produced decompressing and decoding payloads so far
+     */
+    public CompressionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return The next notification, or null at the end of the segment. The returned Record
+     *         is reused by the next call
+     */
+    public Record next() throws IOException {
+        try {
+            while(true) {
+                if(source != buffer && !source.hasRemaining()) {
+                    source = buffer;
+                }
+                if(!fill(1)) {
+                    return null;
+                }
+                byte type = source.get(source.position());
+                boolean complete;
+                if(type == SegmentFormat.RECORD_DATA) {
+                    return readData() ? record : null;
+                } else if(type == SegmentFormat.RECORD_STREAM) {
+                    complete = readStream();
+                } else if(type == SegmentFormat.RECORD_ENCODING) {
+                    complete = readEncoding();
+                } else if(type == SegmentFormat.RECORD_BLOCK && source == buffer) {
+                    complete = readBlock();
+                } else {
+                    throw new IOException("Corrupt segment, record type " + type);
+                }
+                if(!complete) {
+                    return null;
+                }
+            }
+        } catch(BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt segment", e);
+        }
+    }
+
+    private boolean readStream() throws IOException {
+        if(!fill(4)) {
+            return false;
+        }
+        int addressLength = source.get(source.position() + 3) & 0xFF;
+        if(!fill(5 + addressLength)) {
+            return false;
+        }
+        int uuidLength = source.get(source.position() + 4 + addressLength) & 0xFF;
+        if(!fill(5 + addressLength + uuidLength)) {
+            return false;
+        }
+        source.get();
+        short streamId = source.getShort();
+        byte[] address = new byte[source.get() & 0xFF];
+        source.get(address);
+        byte[] uuid = new byte[source.get() & 0xFF];
+        source.get(uuid);
+
+        while(streams.size() <= streamId) {
+            streams.add(null);
+        }
+        streams.set(streamId, new Stream(new String(address, SegmentFormat.CHARSET),
+                new String(uuid, SegmentFormat.CHARSET)));
+        return true;
+    }
+
+    private boolean readEncoding() throws IOException {
+        if(!fill(SegmentFormat.ENCODING_RECORD_SIZE)) {
+            return false;
+        }
+        source.get();
+        Stream stream = getStream(source.getShort());
+        stream.sampleSize = source.get();
+        return true;
+    }
+
+    private boolean readBlock() throws IOException {
+        if(!fill(SegmentFormat.BLOCK_HEADER_SIZE)) {
+            return false;
+        }
+        int deflatedLength = buffer.getInt(buffer.position() + 5);
+        if(!fill(SegmentFormat.BLOCK_HEADER_SIZE + deflatedLength)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        buffer.get();
+        int length = buffer.getInt();
+        buffer.getInt();
+        if(block == null || block.capacity() < length) {
+            block = ByteBuffer.allocate(length);
+        }
+        if(inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), deflatedLength);
+        try {
+            int inflated = 0;
+            while(inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(block.array(), block.arrayOffset() + inflated, length - inflated);
+                if(count == 0 && inflater.needsInput()) {
+                    break;
+                }
+                inflated += count;
+            }
+            if(inflated != length) {
+                throw new IOException("Corrupt segment, short block");
+            }
+        } catch(DataFormatException e) {
+            throw new IOException("Corrupt segment block", e);
+        }
+        buffer.position(buffer.position() + deflatedLength);
+        block.clear();
+        block.limit(length);
+        source = block;
+        stats.decoded(0, System.nanoTime() - start);
+        return true;
+    }
+
+    private boolean readData() throws IOException {
+        if(!fill(SegmentFormat.DATA_HEADER_SIZE)) {
+            return false;
+        }
+        int length = source.getInt(source.position() + SegmentFormat.DATA_HEADER_SIZE - 4);
+        if(!fill(SegmentFormat.DATA_HEADER_SIZE + length)) {
+            return false;
+        }
+        source.get();
+        Stream stream = getStream(source.getShort());
+        record.address = stream.address;
+        record.uuid = stream.uuid;
+        record.timestamp = source.getLong();
+        source.getInt();
+
+        long start = System.nanoTime();
+        if(stream.sampleSize == 0) {
+            record.data = new byte[length];
+            source.get(record.data);
+        } else {
+            int end = source.position() + length;
+            record.data = DeltaCodec.decode(source, stream.previous, stream.sampleSize);
+            source.position(end);
+            stream.previous = record.data;
+        }
+        stats.decoded(record.data.length, System.nanoTime() - start);
+        return true;
+    }
+
+    private Stream getStream(short streamId) throws IOException {
+        if(streamId < 0 || streamId >= streams.size() || streams.get(streamId) == null) {
+            throw new IOException("Corrupt segment, undefined stream " + streamId);
+        }
+        return streams.get(streamId);
+    }
+
+    // Makes at least count bytes available in source. False if the file ends first
+    private boolean fill(int count) throws IOException {
+        if(source.remaining() >= count) {
+            return true;
+        }
+        if(source != buffer || eof) {
+            return false;
+        }
+        if(count > buffer.capacity()) {
+            // Record larger than the read buffer; grow it for the rest of the segment
+            ByteBuffer larger = ByteBuffer.allocate(count);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        while(buffer.position() < count) {
+            if(channel.read(buffer) < 0) {
+                eof = true;
+                break;
+            }
+        }
+        buffer.flip();
+        source = buffer;
+        return buffer.remaining() >= count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(inflater != null) {
+            inflater.end();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,37 @@
+package com.sampullman.ble.stream;
+
+import com.sampullman.ble.LeConnection;
+
+/**
+ * A single notification, as emitted by LeConnection.notifications()
+ */
+public class CharacteristicValue implements Timestamped {
+    private final LeConnection connection;
+    private final String uuid;
+    private final byte[] data;
+    private final long timestamp;
+
+    public CharacteristicValue(LeConnection connection, String uuid, byte[] data, long timestamp) {
+        this.connection = connection;
+        this.uuid = uuid;
+        this.data = data;
+        this.timestamp = timestamp;
+    }
+
+    public LeConnection getConnection() {
+        return connection;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,52 @@
+package com.sampullman.ble.stream;
+
+/**
+ * Applies an operator to an upstream publisher. The upstream is subscribed with unbounded
+ * demand while this publisher has subscribers, and downstream demand is handled by the
+ * inherited SourcePublisher buffering.
+ */
+abstract class OperatorPublisher<T, R> extends SourcePublisher<R> {
+    private final Publisher<T> upstream;
+    private Subscription upstreamSubscription;
+
+    OperatorPublisher(Publisher<T> upstream) {
+        this.upstream = upstream;
+    }
+
+    abstract void onUpstream(T item);
+
+    @Override
+    public void subscribe(Subscriber<? super R> subscriber) {
+        super.subscribe(subscriber);
+        if(upstreamSubscription == null) {
+            upstream.subscribe(new Subscriber<T>() {
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    upstreamSubscription = subscription;
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(T item) {
+                    onUpstream(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {}
+
+                @Override
+                public void onComplete() {
+                    complete();
+                }
+            });
+        }
+    }
+
+    @Override
+    void onLastSubscriberGone() {
+        if(upstreamSubscription != null) {
+            upstreamSubscription.cancel();
+            upstreamSubscription = null;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.sampullman.ble.stream;
+
+/**
+ * Mirrors java.util.concurrent.Flow.Publisher, which is unavailable below API 30
+ */
+public interface Publisher<T> {
+    void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,118 @@
+package com.sampullman.ble.stream;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hot publisher fed by the library. Items are delivered synchronously on the emitting thread
+ * (the main thread for all library publishers) while a subscriber has outstanding demand.
+ * Without demand, up to bufferSize items are held per subscriber and the oldest are dropped.
+ */
+public class SourcePublisher<T> extends StreamPublisher<T> {
+    public static final int DEFAULT_BUFFER_SIZE = 64;
+
+    private final CopyOnWriteArrayList<BoundedSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final int bufferSize;
+    private boolean completed = false;
+
+    public SourcePublisher() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public SourcePublisher(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        BoundedSubscription subscription = new BoundedSubscription(subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        if(completed) {
+            subscription.cancel();
+            subscriber.onComplete();
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    public void emit(T item) {
+        for(BoundedSubscription subscription : subscriptions) {
+            subscription.offer(item);
+        }
+    }
+
+    public void complete() {
+        completed = true;
+        for(BoundedSubscription subscription : subscriptions) {
+            subscription.cancel();
+            subscription.subscriber.onComplete();
+        }
+    }
+
+    void onLastSubscriberGone() {}
+
+    private class BoundedSubscription implements Subscription {
+        final Subscriber<? super T> subscriber;
+        private final ArrayDeque<T> buffer = new ArrayDeque<>();
+        private long demand = 0;
+        private long dropped = 0;
+        private boolean delivering = false;
+        private boolean cancelled = false;
+
+        BoundedSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        synchronized void offer(T item) {
+            if(cancelled) {
+                return;
+            }
+            if(buffer.size() >= bufferSize) {
+                buffer.pollFirst();
+                dropped += 1;
+            }
+            buffer.addLast(item);
+            deliver();
+        }
+
+        // Reentrancy guard so a subscriber calling request() from onNext doesn't recurse
+        private void deliver() {
+            if(delivering) {
+                return;
+            }
+            delivering = true;
+            while(demand > 0 && !buffer.isEmpty() && !cancelled) {
+                if(demand != Long.MAX_VALUE) {
+                    demand -= 1;
+                }
+                subscriber.onNext(buffer.pollFirst());
+            }
+            delivering = false;
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            if(n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            demand = (demand + n < demand) ? Long.MAX_VALUE : demand + n;
+            deliver();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized(this) {
+                cancelled = true;
+                buffer.clear();
+            }
+            if(subscriptions.remove(this) && subscriptions.isEmpty()) {
+                onLastSubscriberGone();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.sampullman.ble.stream;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base publisher with operators that run at the source. Operators filter items as they are
+ * emitted, before anything is buffered or dispatched, so a subscriber that wants 10 Hz out of a
+ * 200 Hz stream only pays for the items it receives.
+ */
+public abstract class StreamPublisher<T> implements Publisher<T> {
+
+    /**
+     * Emits at most one item per period. The first item at least periodMs after the previously
+     * emitted item is passed through. Timestamped items are sampled on their own timestamps,
+     * anything else by arrival time
+     */
+    public StreamPublisher<T> sample(long periodMs) {
+        final long periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+
+        return new OperatorPublisher<T, T>(this) {
+            private boolean first = true;
+            private long last;
+
+            @Override
+            void onUpstream(T item) {
+                long timestamp = (item instanceof Timestamped) ?
+                        ((Timestamped) item).getTimestamp() : SystemClock.elapsedRealtimeNanos();
+                if(first || timestamp - last >= periodNanos) {
+                    first = false;
+                    last = timestamp;
+                    emit(item);
+                }
+            }
+        };
+    }
+
+    /**
+     * Emits every nth item
+     */
+    public StreamPublisher<T> decimate(final int n) {
+        if(n < 1) {
+            throw new IllegalArgumentException("Decimation factor must be positive");
+        }
+        return new OperatorPublisher<T, T>(this) {
+            private int count = 0;
+
+            @Override
+            void onUpstream(T item) {
+                if(count++ % n == 0) {
+                    emit(item);
+                }
+            }
+        };
+    }
+
+    /**
+     * Groups consecutive items into non-overlapping lists of the given size
+     */
+    public StreamPublisher<List<T>> window(final int size) {
+        if(size < 1) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        return new OperatorPublisher<T, List<T>>(this) {
+            private List<T> window = new ArrayList<>(size);
+
+            @Override
+            void onUpstream(T item) {
+                window.add(item);
+                if(window.size() == size) {
+                    List<T> full = window;
+                    window = new ArrayList<>(size);
+                    emit(full);
+                }
+            }
+        };
+    }
+}
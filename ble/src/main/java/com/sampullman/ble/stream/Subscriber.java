@@ -0,0 +1,12 @@
+package com.sampullman.ble.stream;
+
+/**
+ * Mirrors java.util.concurrent.Flow.Subscriber. Nothing is delivered to onNext until
+ * demand is signalled with Subscription.request
+ */
+public interface Subscriber<T> {
+    void onSubscribe(Subscription subscription);
+    void onNext(T item);
+    void onError(Throwable throwable);
+    void onComplete();
+}
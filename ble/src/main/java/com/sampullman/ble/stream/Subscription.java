@@ -0,0 +1,9 @@
+package com.sampullman.ble.stream;
+
+/**
+ * Mirrors java.util.concurrent.Flow.Subscription
+ */
+public interface Subscription {
+    void request(long n);
+    void cancel();
+}
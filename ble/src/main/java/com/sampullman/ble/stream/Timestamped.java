@@ -0,0 +1,8 @@
+package com.sampullman.ble.stream;
+
+public interface Timestamped {
+    /**
+     * @return Time of the event in SystemClock.elapsedRealtimeNanos
+     */
+    long getTimestamp();
+}
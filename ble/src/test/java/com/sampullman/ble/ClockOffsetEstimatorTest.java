@@ -0,0 +1,90 @@
+package com.sampullman.ble;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ClockOffsetEstimatorTest {
+    private static final long PERIOD = 10000000;
+    private static final long LATENCY = 5000000;
+    private static final long START = 1000000000000L;
+
+    private static byte[] packet(long seq) {
+        return new byte[] {0x55, (byte) seq, (byte) (seq >> 8)};
+    }
+
+    private static ClockOffsetEstimator estimator(int counterBits) {
+        return new ClockOffsetEstimator(new ClockOffsetEstimator.LittleEndianCounter(1, 2), counterBits);
+    }
+
+    // Arrival time of a packet, with up to 2ms of extra delay except on every 10th packet
+    private static long arrival(long seq, long period, Random random) {
+        long jitter = (seq % 10 == 0) ? 0 : random.nextInt(2000000);
+        return START + seq * period + LATENCY + jitter;
+    }
+
+    @Test
+    public void readsLittleEndianCounter() {
+        ClockOffsetEstimator.LittleEndianCounter counter = new ClockOffsetEstimator.LittleEndianCounter(1, 2);
+        assertEquals(0x1234, counter.getSequence(new byte[] {(byte) 0xFF, 0x34, 0x12, (byte) 0xFF}));
+        assertEquals(0xFFFF, counter.getSequence(new byte[] {0, (byte) 0xFF, (byte) 0xFF}));
+        assertEquals(0x80000001L, new ClockOffsetEstimator.LittleEndianCounter(0, 4)
+                .getSequence(new byte[] {1, 0, 0, (byte) 0x80}));
+    }
+
+    @Test
+    public void readyAfterTwoPackets() {
+        ClockOffsetEstimator estimator = estimator(16);
+        assertFalse(estimator.isReady());
+        estimator.add(packet(0), START);
+        assertFalse(estimator.isReady());
+        // Too short to hold the counter, so ignored
+        estimator.add(new byte[] {0x55, 1}, START + PERIOD);
+        assertFalse(estimator.isReady());
+        estimator.add(packet(1), START + PERIOD);
+        assertTrue(estimator.isReady());
+        assertEquals(PERIOD, estimator.getPeriodNanos(), 1);
+    }
+
+    @Test
+    public void followsLowerEnvelope() {
+        ClockOffsetEstimator estimator = estimator(16);
+        Random random = new Random(1);
+        for(long seq = 0; seq < 200; seq++) {
+            estimator.add(packet(seq), arrival(seq, PERIOD, random));
+        }
+        assertEquals(PERIOD, estimator.getPeriodNanos(), 2000);
+        // Jitter only adds delay, so host times track the fastest packets rather than the mean
+        for(long seq = 0; seq < 200; seq += 50) {
+            assertEquals(START + seq * PERIOD + LATENCY, estimator.toHostTime(seq), 500000);
+        }
+        assertEquals(START + 199 * PERIOD + LATENCY, estimator.toHostTime(packet(199)), 500000);
+    }
+
+    @Test
+    public void unwrapsCounterRollover() {
+        ClockOffsetEstimator estimator = estimator(8);
+        for(long seq = 0; seq < 600; seq++) {
+            estimator.add(packet(seq & 0xFF), START + seq * PERIOD + LATENCY);
+        }
+        assertEquals(PERIOD, estimator.getPeriodNanos(), 1);
+        // Raw counter values map near the latest packet, in either direction
+        assertEquals(START + 599 * PERIOD + LATENCY, estimator.toHostTime(packet(599 & 0xFF)), 1000);
+        assertEquals(START + 590 * PERIOD + LATENCY, estimator.toHostTime(packet(590 & 0xFF)), 1000);
+        assertEquals(START + 605 * PERIOD + LATENCY, estimator.toHostTime(packet(605 & 0xFF)), 1000);
+    }
+
+    @Test
+    public void windowFollowsPeriodChange() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator(
+                new ClockOffsetEstimator.LittleEndianCounter(1, 2), 16, 32);
+        long time = START;
+        for(long seq = 0; seq < 100; seq++) {
+            estimator.add(packet(seq), time);
+            time += (seq < 50) ? PERIOD : 2 * PERIOD;
+        }
+        assertEquals(2 * PERIOD, estimator.getPeriodNanos(), 1);
+    }
+}
@@ -0,0 +1,164 @@
+package com.sampullman.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LeConnectionPoolTest {
+    private final BluetoothLeService service = new BluetoothLeService();
+    private final List<LeConnection> connected = new ArrayList<>();
+    private final List<LeConnection> evicted = new ArrayList<>();
+    private long time = 0;
+
+    private final LeConnectionPool pool = new LeConnectionPool(new LeConnectionPool.Connector() {
+        @Override
+        public void connect(LeConnection connection) {
+            connected.add(connection);
+        }
+
+        @Override
+        public void evict(LeConnection connection) {
+            evicted.add(connection);
+        }
+    }) {
+        @Override
+        long now() {
+            return time;
+        }
+    };
+
+    private LeConnection connection() {
+        return new LeConnection(service, null);
+    }
+
+    // Fills the pool with connections that are still connecting
+    private List<LeConnection> fill(int capacity) {
+        pool.setCapacity(capacity);
+        List<LeConnection> connections = new ArrayList<>();
+        for(int i = 0; i < capacity; i++) {
+            LeConnection connection = connection();
+            assertTrue(pool.request(connection, LeConnectionPool.PRIORITY_NORMAL));
+            connection.setConnecting(null);
+            connections.add(connection);
+        }
+        return connections;
+    }
+
+    @Test
+    public void admitsUpToCapacity() {
+        fill(2);
+        LeConnection extra = connection();
+        assertFalse(pool.request(extra, LeConnectionPool.PRIORITY_HIGH));
+        assertEquals(2, pool.getActiveCount());
+        assertEquals(1, pool.getWaitingCount());
+        assertEquals(2, connected.size());
+        assertEquals(LeConnectionPool.PRIORITY_HIGH, pool.getPriority(extra));
+        assertEquals(LeConnectionPool.PRIORITY_NORMAL, pool.getPriority(connection()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyCapacity() {
+        pool.setCapacity(0);
+    }
+
+    @Test
+    public void releaseAdmitsHighestPriorityFirst() {
+        List<LeConnection> active = fill(1);
+        LeConnection low = connection(), normal = connection(), high = connection(), high2 = connection();
+        pool.request(low, LeConnectionPool.PRIORITY_LOW);
+        pool.request(normal, LeConnectionPool.PRIORITY_NORMAL);
+        pool.request(high, LeConnectionPool.PRIORITY_HIGH);
+        pool.request(high2, LeConnectionPool.PRIORITY_HIGH);
+        assertEquals(4, pool.getWaitingCount());
+
+        // Waiting connections of equal priority keep their request order
+        LeConnection previous = active.get(0);
+        for(LeConnection next : new LeConnection[] {high, high2, normal, low}) {
+            pool.release(previous);
+            assertSame(next, connected.get(connected.size() - 1));
+            assertEquals(1, pool.getActiveCount());
+            previous = next;
+        }
+        assertEquals(0, pool.getWaitingCount());
+        assertEquals(0, evicted.size());
+    }
+
+    @Test
+    public void releaseStopsWaiting() {
+        fill(1);
+        LeConnection waiting = connection();
+        pool.request(waiting, LeConnectionPool.PRIORITY_NORMAL);
+        pool.release(waiting);
+        assertEquals(0, pool.getWaitingCount());
+        assertEquals(1, pool.getActiveCount());
+    }
+
+    @Test
+    public void raisingCapacityAdmitsWaiting() {
+        fill(1);
+        pool.request(connection(), LeConnectionPool.PRIORITY_NORMAL);
+        pool.request(connection(), LeConnectionPool.PRIORITY_NORMAL);
+        pool.setCapacity(3);
+        assertEquals(3, pool.getActiveCount());
+        assertEquals(0, pool.getWaitingCount());
+    }
+
+    @Test
+    public void adoptMayExceedCapacity() {
+        fill(1);
+        LeConnection waiting = connection();
+        pool.request(waiting, LeConnectionPool.PRIORITY_LOW);
+        pool.adopt(waiting, LeConnectionPool.PRIORITY_HIGH);
+        pool.adopt(waiting, LeConnectionPool.PRIORITY_HIGH);
+        assertEquals(2, pool.getActiveCount());
+        assertEquals(0, pool.getWaitingCount());
+        assertEquals(LeConnectionPool.PRIORITY_HIGH, pool.getPriority(waiting));
+        // Adopted connections are already connected
+        assertEquals(1, connected.size());
+    }
+
+    @Test
+    public void reclaimsFailedConnection() {
+        List<LeConnection> active = fill(2);
+        active.get(1).disconnected();
+        LeConnection next = connection();
+
+        // A failed connection keeps its slot while it may still be retried
+        assertFalse(pool.request(next, LeConnectionPool.PRIORITY_LOW));
+        pool.release(next);
+
+        time = 1000;
+        assertTrue(pool.request(next, LeConnectionPool.PRIORITY_LOW));
+        assertSame(active.get(1), evicted.get(0));
+        assertEquals(2, pool.getActiveCount());
+        assertEquals(0, pool.getEvictionCount());
+    }
+
+    @Test
+    public void keepsSlotOfQueuedConnection() {
+        pool.setCapacity(1);
+        // Admitted, but its connect operation hasn't started yet
+        LeConnection queued = connection();
+        assertTrue(pool.request(queued, LeConnectionPool.PRIORITY_NORMAL));
+        queued.connectQueued();
+
+        time = 60000;
+        assertFalse(pool.request(connection(), LeConnectionPool.PRIORITY_HIGH));
+        assertEquals(0, evicted.size());
+    }
+
+    @Test
+    public void keepsSlotOfRetriedConnection() {
+        LeConnection retried = fill(1).get(0);
+        retried.disconnected();
+        // A retry was queued before the slot could be reclaimed
+        retried.connectQueued();
+
+        time = 60000;
+        assertFalse(pool.request(connection(), LeConnectionPool.PRIORITY_HIGH));
+        assertEquals(0, evicted.size());
+    }
+}
@@ -0,0 +1,54 @@
+package com.sampullman.ble;
+
+import org.junit.Test;
+
+import static com.sampullman.ble.LeConnection.*;
+import static org.junit.Assert.*;
+
+public class LeConnectionTest {
+    private static final int[] STATES = {STATE_DISCONNECTED, STATE_CONNECTING, STATE_CONNECTED,
+            STATE_DISCOVERING, STATE_READY, STATE_DISCONNECTING};
+
+    private static void assertAllowed(int from, int... allowed) {
+        for(int to : STATES) {
+            boolean expected = false;
+            for(int state : allowed) {
+                expected |= state == to;
+            }
+            assertEquals(stateName(from) + " -> " + stateName(to), expected, canTransition(from, to));
+        }
+    }
+
+    @Test
+    public void connectsOnlyFromDisconnected() {
+        assertAllowed(STATE_DISCONNECTED, STATE_CONNECTING);
+        assertAllowed(STATE_CONNECTING, STATE_CONNECTED, STATE_DISCONNECTING, STATE_DISCONNECTED);
+    }
+
+    @Test
+    public void discoversAfterConnecting() {
+        assertAllowed(STATE_CONNECTED, STATE_DISCOVERING, STATE_DISCONNECTING, STATE_DISCONNECTED);
+        assertAllowed(STATE_DISCOVERING, STATE_READY, STATE_DISCONNECTING, STATE_DISCONNECTED);
+        // Services changed, so a ready connection discovers again
+        assertAllowed(STATE_READY, STATE_DISCOVERING, STATE_DISCONNECTING, STATE_DISCONNECTED);
+    }
+
+    @Test
+    public void disconnectingOnlyFinishes() {
+        assertAllowed(STATE_DISCONNECTING, STATE_DISCONNECTED);
+    }
+
+    @Test
+    public void neverTransitionsToSameState() {
+        for(int state : STATES) {
+            assertFalse(stateName(state), canTransition(state, state));
+        }
+    }
+
+    @Test
+    public void namesStates() {
+        assertEquals("DISCONNECTED", stateName(STATE_DISCONNECTED));
+        assertEquals("READY", stateName(STATE_READY));
+        assertEquals("UNKNOWN", stateName(42));
+    }
+}
@@ -0,0 +1,181 @@
+package com.sampullman.ble;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class NotificationQueueTest {
+    private static final String UUID_A = "0000aaaa-0000-1000-8000-00805f9b34fb";
+
+    private static byte[] packet(long seq) {
+        return new byte[] {(byte) seq, (byte) (seq >> 8)};
+    }
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(4, new NotificationQueue(3, NotificationQueue.DROP_OLDEST, 0).capacity());
+        assertEquals(4, new NotificationQueue(4, NotificationQueue.DROP_OLDEST, 0).capacity());
+        assertEquals(1024, new NotificationQueue().capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTinyCapacity() {
+        new NotificationQueue(1, NotificationQueue.DROP_OLDEST, 0);
+    }
+
+    @Test
+    public void wrapsAroundInOrder() {
+        NotificationQueue queue = new NotificationQueue(4, NotificationQueue.DROP_NEWEST, 0);
+        NotificationQueue.Entry entry = new NotificationQueue.Entry();
+        long next = 0;
+        // Offer and poll in uneven steps so head and tail cross the end of the ring many times
+        for(long seq = 0; seq < 100; seq++) {
+            assertTrue(queue.offer(UUID_A, (int) seq, packet(seq), seq));
+            if(seq % 3 != 0) {
+                while(queue.poll(entry)) {
+                    assertEquals(next, entry.timestamp);
+                    assertEquals(next, entry.handle);
+                    assertSame(UUID_A, entry.uuid);
+                    assertArrayEquals(packet(next), entry.data);
+                    next += 1;
+                }
+            }
+        }
+        while(queue.poll(entry)) {
+            assertEquals(next++, entry.timestamp);
+        }
+        assertEquals(100, next);
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(100, queue.getOfferedCount());
+    }
+
+    @Test
+    public void offerWithoutHandleUsesNoHandle() {
+        NotificationQueue queue = new NotificationQueue(2, NotificationQueue.DROP_OLDEST, 0);
+        NotificationQueue.Entry entry = new NotificationQueue.Entry();
+        queue.offer(UUID_A, packet(1), 1);
+        assertTrue(queue.poll(entry));
+        assertEquals(UuidTable.NO_HANDLE, entry.handle);
+        assertFalse(queue.poll(entry));
+    }
+
+    @Test
+    public void dropOldestKeepsNewest() {
+        NotificationQueue queue = new NotificationQueue(4, NotificationQueue.DROP_OLDEST, 0);
+        for(long seq = 0; seq < 10; seq++) {
+            assertTrue(queue.offer(UUID_A, packet(seq), seq));
+        }
+        assertEquals(6, queue.getDroppedOldestCount());
+        assertEquals(0, queue.getDroppedNewestCount());
+        assertEquals(6, queue.getDroppedCount());
+        assertEquals(10, queue.getOfferedCount());
+        assertEquals(4, queue.size());
+        assertEquals(4, queue.getHighWatermark());
+
+        NotificationQueue.Entry entry = new NotificationQueue.Entry();
+        for(long seq = 6; seq < 10; seq++) {
+            assertTrue(queue.poll(entry));
+            assertEquals(seq, entry.timestamp);
+        }
+        assertFalse(queue.poll(entry));
+    }
+
+    @Test
+    public void dropNewestKeepsOldest() {
+        NotificationQueue queue = new NotificationQueue(4, NotificationQueue.DROP_NEWEST, 0);
+        for(long seq = 0; seq < 10; seq++) {
+            assertEquals(seq < 4, queue.offer(UUID_A, packet(seq), seq));
+        }
+        assertEquals(0, queue.getDroppedOldestCount());
+        assertEquals(6, queue.getDroppedNewestCount());
+        assertEquals(4, queue.size());
+
+        NotificationQueue.Entry entry = new NotificationQueue.Entry();
+        for(long seq = 0; seq < 4; seq++) {
+            assertTrue(queue.poll(entry));
+            assertEquals(seq, entry.timestamp);
+        }
+        assertFalse(queue.poll(entry));
+    }
+
+    @Test
+    public void blockTimesOutAndDrops() {
+        NotificationQueue queue = new NotificationQueue(2, NotificationQueue.BLOCK, 50);
+        assertTrue(queue.offer(UUID_A, packet(0), 0));
+        assertTrue(queue.offer(UUID_A, packet(1), 1));
+
+        long start = System.nanoTime();
+        assertFalse(queue.offer(UUID_A, packet(2), 2));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("Blocked only " + elapsedMs + "ms", elapsedMs >= 50);
+        assertEquals(1, queue.getDroppedNewestCount());
+        assertEquals(0, queue.getDroppedOldestCount());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void blockResumesWhenConsumerFreesSpace() throws InterruptedException {
+        NotificationQueue queue = new NotificationQueue(2, NotificationQueue.BLOCK, 5000);
+        queue.offer(UUID_A, packet(0), 0);
+        queue.offer(UUID_A, packet(1), 1);
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch(InterruptedException e) {
+                return;
+            }
+            queue.poll(new NotificationQueue.Entry());
+        });
+        consumer.start();
+        assertTrue(queue.offer(UUID_A, packet(2), 2));
+        consumer.join();
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void drainRequestsCoalesce() {
+        NotificationQueue queue = new NotificationQueue();
+        assertTrue(queue.requestDrain());
+        assertFalse(queue.requestDrain());
+        queue.drainStarted();
+        assertTrue(queue.requestDrain());
+    }
+
+    @Test
+    public void producerConsumerUnderBlockLosesNothing() throws InterruptedException {
+        final int count = 500000;
+        NotificationQueue queue = new NotificationQueue(64, NotificationQueue.BLOCK, 10000);
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread consumer = new Thread(() -> {
+            NotificationQueue.Entry entry = new NotificationQueue.Entry();
+            long next = 0;
+            while(next < count) {
+                if(!queue.poll(entry)) {
+                    Thread.yield();
+                    continue;
+                }
+                if(entry.timestamp != next || entry.handle != (int) next || entry.data[0] != (byte) next) {
+                    failure.set("Expected " + next + " got " + entry.timestamp);
+                    return;
+                }
+                next += 1;
+            }
+        });
+        consumer.start();
+        for(long seq = 0; seq < count; seq++) {
+            assertTrue(queue.offer(UUID_A, (int) seq, packet(seq), seq));
+        }
+        consumer.join(30000);
+        assertFalse("Consumer didn't finish", consumer.isAlive());
+        assertNull(failure.get());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(count, queue.getOfferedCount());
+        assertEquals(0, queue.size());
+        assertTrue(queue.getHighWatermark() <= 64);
+    }
+}
@@ -0,0 +1,51 @@
+package com.sampullman.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ServerConnectionTest {
+
+    private static ServerConnection connection(int handles) {
+        return new ServerConnection(null, null, new NotificationQueue(), handles);
+    }
+
+    @Test
+    public void joinsPreparedWritesPerHandle() {
+        ServerConnection connection = connection(3);
+        assertTrue(connection.prepareWrite(0, 0, new byte[] {1, 2}));
+        assertTrue(connection.prepareWrite(2, 0, new byte[] {9}));
+        assertTrue(connection.prepareWrite(0, 2, new byte[] {3}));
+        assertTrue(connection.prepareWrite(0, 3, new byte[0]));
+
+        byte[][] values = connection.takePreparedWrites();
+        assertEquals(3, values.length);
+        assertArrayEquals(new byte[] {1, 2, 3}, values[0]);
+        assertNull(values[1]);
+        assertArrayEquals(new byte[] {9}, values[2]);
+    }
+
+    @Test
+    public void rejectsOffsetThatDoesNotContinueWrite() {
+        ServerConnection connection = connection(1);
+        assertFalse(connection.prepareWrite(0, 1, new byte[] {1}));
+        assertTrue(connection.prepareWrite(0, 0, new byte[] {1, 2}));
+        // Gaps, overlaps and rewrites are all refused without changing the buffered value
+        assertFalse(connection.prepareWrite(0, 3, new byte[] {4}));
+        assertFalse(connection.prepareWrite(0, 1, new byte[] {5}));
+        assertFalse(connection.prepareWrite(0, 0, new byte[] {6}));
+        assertArrayEquals(new byte[] {1, 2}, connection.takePreparedWrites()[0]);
+    }
+
+    @Test
+    public void takeClearsPreparedWrites() {
+        ServerConnection connection = connection(2);
+        assertTrue(connection.prepareWrite(1, 0, new byte[] {7}));
+        assertArrayEquals(new byte[] {7}, connection.takePreparedWrites()[1]);
+        assertNull(connection.takePreparedWrites()[1]);
+        // The next write to the handle starts again at offset 0
+        assertFalse(connection.prepareWrite(1, 1, new byte[] {8}));
+        assertTrue(connection.prepareWrite(1, 0, new byte[] {8}));
+        assertArrayEquals(new byte[] {8}, connection.takePreparedWrites()[1]);
+    }
+}
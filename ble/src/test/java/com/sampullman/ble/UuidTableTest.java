@@ -0,0 +1,77 @@
+package com.sampullman.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class UuidTableTest {
+    private static final UUID HEART_RATE = UuidTable.fromShortUuid(0x2A37);
+    private static final UUID BATTERY = UuidTable.fromShortUuid(0x2A19);
+    private static final UUID CUSTOM_A = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID CUSTOM_B = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+
+    @Test
+    public void convertsShortUuids() {
+        assertEquals(UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb"), HEART_RATE);
+        assertEquals(0x2A37, UuidTable.toShortUuid(HEART_RATE));
+        assertEquals(0xFFFF, UuidTable.toShortUuid(UuidTable.fromShortUuid(0xFFFF)));
+        assertEquals(-1, UuidTable.toShortUuid(CUSTOM_A));
+        // 32-bit SIG UUIDs aren't 16-bit
+        assertEquals(-1, UuidTable.toShortUuid(UUID.fromString("12342a37-0000-1000-8000-00805f9b34fb")));
+    }
+
+    @Test
+    public void emptyTableHasNoHandles() {
+        assertEquals(0, UuidTable.EMPTY.size());
+        assertEquals(UuidTable.NO_HANDLE, UuidTable.EMPTY.handleOf(HEART_RATE));
+        assertEquals(UuidTable.NO_HANDLE, UuidTable.EMPTY.handleOf(0x2A37));
+        assertEquals(UuidTable.NO_HANDLE, UuidTable.EMPTY.handleOf(CUSTOM_A));
+    }
+
+    @Test
+    public void looksUpShortAndLongUuids() {
+        UuidTable table = UuidTable.EMPTY.extendUuids(Arrays.asList(HEART_RATE, CUSTOM_A, BATTERY));
+        assertEquals(3, table.size());
+        assertEquals(0, table.handleOf(HEART_RATE));
+        assertEquals(0, table.handleOf(0x2A37));
+        assertEquals(1, table.handleOf(CUSTOM_A));
+        assertEquals(2, table.handleOf(0x2A19));
+        assertEquals(UuidTable.NO_HANDLE, table.handleOf(CUSTOM_B));
+        assertEquals(UuidTable.NO_HANDLE, table.handleOf(0x2A38));
+
+        assertEquals(0x2A37, table.getShortUuid(0));
+        assertEquals(-1, table.getShortUuid(1));
+        assertEquals(CUSTOM_A, table.getUuid(1));
+        assertEquals(CUSTOM_A.toString(), table.getString(1));
+        assertSame(table.getString(1), table.getString(table.handleOf(CUSTOM_A)));
+    }
+
+    @Test
+    public void handlesStableAcrossExtend() {
+        UuidTable first = UuidTable.EMPTY.extendUuids(Arrays.asList(CUSTOM_A, HEART_RATE));
+        // Rediscovery in a different order, with a duplicate and a new characteristic
+        UuidTable second = first.extendUuids(Arrays.asList(BATTERY, HEART_RATE, CUSTOM_A, BATTERY));
+        assertEquals(3, second.size());
+        assertEquals(first.handleOf(CUSTOM_A), second.handleOf(CUSTOM_A));
+        assertEquals(first.handleOf(HEART_RATE), second.handleOf(HEART_RATE));
+        assertEquals(2, second.handleOf(BATTERY));
+
+        assertSame(second, second.extendUuids(Arrays.asList(HEART_RATE, BATTERY)));
+    }
+
+    @Test
+    public void findsEveryHandleInLargeTable() {
+        UUID[] uuids = new UUID[200];
+        for(int i = 0; i < uuids.length; i++) {
+            uuids[i] = (i % 2 == 0) ? UuidTable.fromShortUuid(0x2A00 + i) : new UUID(i, -i);
+        }
+        UuidTable table = UuidTable.EMPTY.extendUuids(Arrays.asList(uuids));
+        assertEquals(uuids.length, table.size());
+        for(int i = 0; i < uuids.length; i++) {
+            assertEquals(i, table.handleOf(uuids[i]));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.sampullman.ble.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compression ratio and encode/decode throughput of NotificationBuffer over synthetic sensor
+ * streams, for each combination of delta coding and deflate. Prints a table, and checks every
+ * configuration decodes exactly what was added.
+ */
+public class CompressionBenchmarkTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String UUID = "0000aaaa-0000-1000-8000-00805f9b34fb";
+    private static final int NOTIFICATIONS = 20000;
+    private static final int ROUNDS = 3;
+
+    private interface Stream {
+        byte[] payload(int i);
+    }
+
+    // 3 axis 16 bit accelerometer at 100Hz: slow motion plus sensor noise
+    private static Stream accelerometer(long seed) {
+        Random random = new Random(seed);
+        return i -> {
+            ByteBuffer data = ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN);
+            for(int axis = 0; axis < 3; axis++) {
+                double motion = 2000 * Math.sin(i / 50.0 + axis);
+                data.putShort((short) (motion + random.nextGaussian() * 8));
+            }
+            return data.array();
+        };
+    }
+
+    // Heart rate measurement: flags, 8 bit bpm, then a 16 bit RR interval
+    private static Stream heartRate(long seed) {
+        Random random = new Random(seed);
+        return i -> {
+            int bpm = 70 + (int) (10 * Math.sin(i / 500.0));
+            int rr = 60 * 1024 / bpm + random.nextInt(5) - 2;
+            return new byte[] {0x10, (byte) bpm, (byte) rr, (byte) (rr >> 8)};
+        };
+    }
+
+    // 32 bit counters from a slowly drifting sensor, e.g. temperature in millidegrees
+    private static Stream temperature(long seed) {
+        Random random = new Random(seed);
+        int[] value = {21500};
+        return i -> {
+            value[0] += random.nextInt(7) - 3;
+            return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(value[0]).putInt(i).array();
+        };
+    }
+
+    // Incompressible, as a worst case for both encodings
+    private static Stream noise(long seed) {
+        Random random = new Random(seed);
+        return i -> {
+            byte[] data = new byte[20];
+            random.nextBytes(data);
+            return data;
+        };
+    }
+
+    private static byte[][] generate(Stream stream) {
+        byte[][] payloads = new byte[NOTIFICATIONS][];
+        for(int i = 0; i < NOTIFICATIONS; i++) {
+            payloads[i] = stream.payload(i);
+        }
+        return payloads;
+    }
+
+    private static CompressionStats run(byte[][] payloads, int sampleSize, boolean compress) {
+        CompressionStats best = null;
+        for(int round = 0; round < ROUNDS; round++) {
+            NotificationBuffer buffer = new NotificationBuffer(Long.MAX_VALUE);
+            buffer.setCompression(compress);
+            buffer.setSampleEncoding(UUID, sampleSize);
+            for(int i = 0; i < payloads.length; i++) {
+                buffer.add(ADDRESS, UUID, i, payloads[i]);
+            }
+            int[] next = {0};
+            int count = buffer.drain((address, uuid, timestamp, data) -> {
+                assertEquals(next[0], timestamp);
+                assertArrayEquals(payloads[next[0]], data);
+                next[0] += 1;
+            });
+            assertEquals(payloads.length, count);
+            // Later rounds run warmed up
+            CompressionStats stats = buffer.getStats();
+            if(best == null || stats.getEncodeThroughput() > best.getEncodeThroughput()) {
+                best = stats;
+            }
+        }
+        return best;
+    }
+
+    private static void report(String name, byte[][] payloads, int sampleSize) {
+        System.out.println(String.format(Locale.US, "%s, %d notifications of %d bytes, %d byte samples",
+                name, payloads.length, payloads[0].length, sampleSize));
+        System.out.println("  encoding        ratio   encode MB/s   decode MB/s");
+        String[] names = {"raw", "delta", "deflate", "delta+deflate"};
+        double[] ratios = new double[names.length];
+        for(int config = 0; config < names.length; config++) {
+            CompressionStats stats = run(payloads, (config % 2 == 1) ? sampleSize : 0, config >= 2);
+            ratios[config] = stats.getCompressionRatio();
+            System.out.println(String.format(Locale.US, "  %-13s %7.2f %13.1f %13.1f", names[config],
+                    stats.getCompressionRatio(), stats.getEncodeThroughput() / 1e6,
+                    stats.getDecodeThroughput() / 1e6));
+        }
+        // Raw records carry a header per notification, so they never beat the payload size
+        assertTrue(ratios[0] < 1);
+        assertTrue(ratios[3] > 0);
+    }
+
+    @Test
+    public void accelerometer() {
+        report("accelerometer", generate(accelerometer(1)), 2);
+    }
+
+    @Test
+    public void heartRate() {
+        report("heart rate", generate(heartRate(2)), 1);
+    }
+
+    @Test
+    public void temperature() {
+        report("temperature", generate(temperature(3)), 4);
+    }
+
+    @Test
+    public void noise() {
+        report("noise", generate(noise(4)), 1);
+    }
+
+    @Test
+    public void deltaCodingShrinksSmoothSignals() {
+        byte[][] payloads = generate(temperature(5));
+        double raw = run(payloads, 0, false).getCompressionRatio();
+        double delta = run(payloads, 4, false).getCompressionRatio();
+        double both = run(payloads, 4, true).getCompressionRatio();
+        assertTrue("delta " + delta + " raw " + raw, delta > raw);
+        assertTrue("delta+deflate " + both + " delta " + delta, both > delta);
+    }
+}
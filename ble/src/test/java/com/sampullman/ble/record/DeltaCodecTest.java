@@ -0,0 +1,115 @@
+package com.sampullman.ble.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class DeltaCodecTest {
+
+    private static byte[] roundTrip(byte[] data, byte[] previous, int sampleSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(DeltaCodec.maxEncodedSize(data.length));
+        DeltaCodec.encode(data, previous, sampleSize, buffer);
+        buffer.flip();
+        byte[] decoded = DeltaCodec.decode(buffer, previous, sampleSize);
+        assertEquals(0, buffer.remaining());
+        return decoded;
+    }
+
+    private static int encodedSize(byte[] data, byte[] previous, int sampleSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(DeltaCodec.maxEncodedSize(data.length));
+        DeltaCodec.encode(data, previous, sampleSize, buffer);
+        return buffer.position();
+    }
+
+    private static byte[] int16(int... samples) {
+        ByteBuffer buffer = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for(int sample : samples) {
+            buffer.putShort((short) sample);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] int32(int... samples) {
+        ByteBuffer buffer = ByteBuffer.allocate(samples.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for(int sample : samples) {
+            buffer.putInt(sample);
+        }
+        return buffer.array();
+    }
+
+    @Test
+    public void smallDeltasTakeOneByte() {
+        // Length varint, then one zigzag byte per sample for deltas within -64..63
+        byte[] previous = int16(1000, -1000, 0);
+        byte[] data = int16(1063, -1064, -1);
+        assertEquals(1 + 3, encodedSize(data, previous, 2));
+        assertArrayEquals(data, roundTrip(data, previous, 2));
+    }
+
+    @Test
+    public void zigzagBoundaries() {
+        // 63 and -64 fit one varint byte, 64 and -65 need two
+        assertEquals(2, encodedSize(new byte[] {63}, new byte[] {0}, 1));
+        assertEquals(2, encodedSize(new byte[] {-64}, new byte[] {0}, 1));
+        assertEquals(3, encodedSize(new byte[] {64}, new byte[] {0}, 1));
+        assertEquals(3, encodedSize(new byte[] {-65}, new byte[] {0}, 1));
+    }
+
+    @Test
+    public void roundTripsOneByteSamples() {
+        byte[] previous = {0, 127, -128, 5};
+        byte[] data = {-128, -128, 127, 5};
+        assertArrayEquals(data, roundTrip(data, previous, 1));
+    }
+
+    @Test
+    public void roundTripsTwoByteSamples() {
+        byte[] previous = int16(Short.MIN_VALUE, Short.MAX_VALUE, 0, -1);
+        byte[] data = int16(Short.MAX_VALUE, Short.MIN_VALUE, -1, 0);
+        assertArrayEquals(data, roundTrip(data, previous, 2));
+    }
+
+    @Test
+    public void roundTripsFourByteSamples() {
+        // Deltas overflow an int and wrap, which decoding undoes
+        byte[] previous = int32(Integer.MIN_VALUE, Integer.MAX_VALUE, 0, 123456789);
+        byte[] data = int32(Integer.MAX_VALUE, Integer.MIN_VALUE, -1, 123456790);
+        assertArrayEquals(data, roundTrip(data, previous, 4));
+        // Five varint bytes is the most a sample can take
+        assertTrue(encodedSize(data, previous, 4) <= DeltaCodec.maxEncodedSize(data.length));
+    }
+
+    @Test
+    public void trailingBytesAreSingleSamples() {
+        byte[] previous = {1, 2, 3, 4, 5, 6, 7};
+        byte[] data = {8, 9, 10, 11, 12, 13, 14};
+        assertArrayEquals(data, roundTrip(data, previous, 4));
+        assertArrayEquals(data, roundTrip(data, previous, 2));
+    }
+
+    @Test
+    public void shorterOrMissingPreviousCountsAsZero() {
+        byte[] data = int16(100, 200, 300);
+        assertArrayEquals(data, roundTrip(data, null, 2));
+        assertArrayEquals(data, roundTrip(data, int16(99), 2));
+        assertArrayEquals(new byte[0], roundTrip(new byte[0], data, 2));
+    }
+
+    @Test
+    public void largePayloadLength() {
+        byte[] data = new byte[300];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertArrayEquals(data, roundTrip(data, null, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedVarint() {
+        byte[] bytes = {(byte) 0x81, (byte) 0x81, (byte) 0x81, (byte) 0x81, (byte) 0x81, 1};
+        DeltaCodec.decode(ByteBuffer.wrap(bytes), null, 1);
+    }
+}
@@ -0,0 +1,120 @@
+package com.sampullman.ble.record;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NotificationBufferTest {
+    private static final String ADDRESS_A = "00:11:22:33:44:55";
+    private static final String ADDRESS_B = "66:77:88:99:AA:BB";
+    private static final String UUID_A = "0000aaaa-0000-1000-8000-00805f9b34fb";
+
+    private static byte[] payload(int i) {
+        return new byte[] {(byte) i, (byte) (i >> 8), 0, 0, (byte) (i * 3), (byte) ((i * 3) >> 8)};
+    }
+
+    private static void addAll(NotificationBuffer buffer, int count) {
+        for(int i = 0; i < count; i++) {
+            buffer.add((i % 2 == 0) ? ADDRESS_A : ADDRESS_B, UUID_A, i, payload(i));
+        }
+    }
+
+    private static List<Long> drainChecked(NotificationBuffer buffer) {
+        List<Long> timestamps = new ArrayList<>();
+        buffer.drain((address, uuid, timestamp, data) -> {
+            int i = (int) timestamp;
+            assertEquals((i % 2 == 0) ? ADDRESS_A : ADDRESS_B, address);
+            assertEquals(UUID_A, uuid);
+            assertArrayEquals(payload(i), data);
+            timestamps.add(timestamp);
+        });
+        return timestamps;
+    }
+
+    private static void assertSequence(List<Long> timestamps, long first, long count) {
+        assertEquals(count, timestamps.size());
+        for(int i = 0; i < count; i++) {
+            assertEquals(first + i, (long) timestamps.get(i));
+        }
+    }
+
+    @Test
+    public void drainsEverythingInOrder() {
+        NotificationBuffer buffer = new NotificationBuffer(1024, 1 << 20);
+        addAll(buffer, 1000);
+        assertSequence(drainChecked(buffer), 0, 1000);
+        assertEquals(0, buffer.getByteCount());
+        assertEquals(0, drainChecked(buffer).size());
+    }
+
+    @Test
+    public void drainsDeltaCodedWithoutCompression() {
+        NotificationBuffer buffer = new NotificationBuffer(512, 1 << 20);
+        buffer.setCompression(false);
+        buffer.setSampleEncoding(UUID_A, 2);
+        addAll(buffer, 1000);
+        assertSequence(drainChecked(buffer), 0, 1000);
+    }
+
+    @Test
+    public void encodingChangeMidStream() {
+        NotificationBuffer buffer = new NotificationBuffer(1024, 1 << 20);
+        addAll(buffer, 10);
+        buffer.setSampleEncoding(UUID_A, 4);
+        for(int i = 10; i < 20; i++) {
+            buffer.add((i % 2 == 0) ? ADDRESS_A : ADDRESS_B, UUID_A, i, payload(i));
+        }
+        assertSequence(drainChecked(buffer), 0, 20);
+    }
+
+    @Test
+    public void dropsOldestBlocksOverLimit() {
+        NotificationBuffer buffer = new NotificationBuffer(256, 1024);
+        buffer.setCompression(false);
+        addAll(buffer, 2000);
+        assertTrue(buffer.getDroppedBlockCount() > 0);
+
+        List<Long> timestamps = drainChecked(buffer);
+        // What's left is the newest notifications, still in order
+        long first = timestamps.get(0);
+        assertTrue(first > 0);
+        assertSequence(timestamps, first, 2000 - first);
+    }
+
+    @Test
+    public void statsCountPayloadAndStoredBytes() {
+        NotificationBuffer buffer = new NotificationBuffer(4096, 1 << 20);
+        buffer.setSampleEncoding(UUID_A, 2);
+        addAll(buffer, 5000);
+        drainChecked(buffer);
+
+        CompressionStats stats = buffer.getStats();
+        assertEquals(5000 * 6, stats.getRawBytes());
+        assertTrue(stats.getStoredBytes() > 0);
+        assertEquals((double) stats.getRawBytes() / stats.getStoredBytes(), stats.getCompressionRatio(), 1e-9);
+        // Counters and small deltas compress well below the payload size
+        assertTrue(stats.getCompressionRatio() > 1);
+        assertTrue(stats.getEncodeThroughput() > 0);
+        assertTrue(stats.getDecodeThroughput() > 0);
+    }
+
+    @Test
+    public void emptyStatsReportZero() {
+        CompressionStats stats = new CompressionStats();
+        assertEquals(0, stats.getCompressionRatio(), 0);
+        assertEquals(0, stats.getEncodeThroughput(), 0);
+        assertEquals(0, stats.getDecodeThroughput(), 0);
+
+        CompressionStats other = new CompressionStats();
+        other.decoded(100, 1000);
+        stats.addDecoding(other);
+        stats.encoded(400, 1000);
+        stats.stored(100, 1000);
+        assertEquals(4, stats.getCompressionRatio(), 1e-9);
+        assertEquals(400 * 1e9 / 2000, stats.getEncodeThroughput(), 1e-3);
+        assertEquals(100 * 1e9 / 1000, stats.getDecodeThroughput(), 1e-3);
+    }
+}
@@ -0,0 +1,43 @@
+package com.sampullman.ble.record;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class NotificationRecorderTest {
+
+    private static File directory(long... segments) throws IOException {
+        File directory = Files.createTempDirectory("recording").toFile();
+        directory.deleteOnExit();
+        for(long segment : segments) {
+            File file = new File(directory, SegmentFormat.segmentName(segment));
+            assertTrue(file.createNewFile());
+            file.deleteOnExit();
+        }
+        return directory;
+    }
+
+    @Test
+    public void parsesSegmentNames() {
+        assertEquals(42, SegmentFormat.segmentIndex(SegmentFormat.segmentName(42)));
+        assertEquals(123456789, SegmentFormat.segmentIndex(SegmentFormat.segmentName(123456789)));
+        assertEquals(-1, SegmentFormat.segmentIndex("segment-x.bin"));
+        assertEquals(-1, SegmentFormat.segmentIndex("notes.txt"));
+    }
+
+    @Test
+    public void startsAtZeroInEmptyDirectory() throws IOException {
+        assertEquals(0, NotificationRecorder.nextSegmentIndex(directory()));
+    }
+
+    @Test
+    public void continuesAfterHighestSegment() throws IOException {
+        assertEquals(3, NotificationRecorder.nextSegmentIndex(directory(0, 1, 2)));
+        // Retention deleted the oldest segments, so the count is lower than the next index
+        assertEquals(10, NotificationRecorder.nextSegmentIndex(directory(7, 9)));
+    }
+}
@@ -0,0 +1,200 @@
+package com.sampullman.ble.record;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class SegmentReaderTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String UUID_A = "0000aaaa-0000-1000-8000-00805f9b34fb";
+    private static final String UUID_B = "0000bbbb-0000-1000-8000-00805f9b34fb";
+
+    private static class Notification {
+        final String address, uuid;
+        final long timestamp;
+        final byte[] data;
+
+        Notification(String address, String uuid, long timestamp, byte[] data) {
+            this.address = address;
+            this.uuid = uuid;
+            this.timestamp = timestamp;
+            this.data = data;
+        }
+    }
+
+    private static byte[] header(short version) {
+        ByteBuffer header = ByteBuffer.allocate(SegmentFormat.HEADER_SIZE);
+        header.putInt(SegmentFormat.MAGIC);
+        header.putShort(version);
+        return header.array();
+    }
+
+    private static SegmentReader reader(byte[] segment, int bufferSize) throws IOException {
+        return new SegmentReader(Channels.newChannel(new ByteArrayInputStream(segment)), true, bufferSize);
+    }
+
+    private static List<Notification> sensorStream(int count) {
+        List<Notification> notifications = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            String uuid = (i % 3 == 0) ? UUID_B : UUID_A;
+            byte[] data = new byte[(i % 7 == 0) ? 7 : 12];
+            for(int b = 0; b < data.length; b++) {
+                data[b] = (byte) ((b % 2 == 0) ? i + b : i >> 4);
+            }
+            notifications.add(new Notification(ADDRESS, uuid, 1000L + i, data));
+        }
+        return notifications;
+    }
+
+    private static void assertRead(List<Notification> expected, SegmentReader reader) throws IOException {
+        for(Notification n : expected) {
+            SegmentReader.Record record = reader.next();
+            assertNotNull(record);
+            assertEquals(n.address, record.getAddress());
+            assertEquals(n.uuid, record.getUuid());
+            assertEquals(n.timestamp, record.getTimestamp());
+            assertArrayEquals(n.data, record.getData());
+        }
+        assertNull(reader.next());
+    }
+
+    // Version 1 layout: raw stream and data records only
+    private static void writeV1(ByteArrayOutputStream out, List<Notification> notifications) {
+        List<String> streams = new ArrayList<>();
+        for(Notification n : notifications) {
+            String key = n.address + n.uuid;
+            int streamId = streams.indexOf(key);
+            ByteBuffer record = ByteBuffer.allocate(256);
+            if(streamId == -1) {
+                streamId = streams.size();
+                streams.add(key);
+                record.put(SegmentFormat.RECORD_STREAM);
+                record.putShort((short) streamId);
+                record.put((byte) n.address.length());
+                record.put(n.address.getBytes(SegmentFormat.CHARSET));
+                record.put((byte) n.uuid.length());
+                record.put(n.uuid.getBytes(SegmentFormat.CHARSET));
+            }
+            record.put(SegmentFormat.RECORD_DATA);
+            record.putShort((short) streamId);
+            record.putLong(n.timestamp);
+            record.putInt(n.data.length);
+            record.put(n.data);
+            out.write(record.array(), 0, record.position());
+        }
+    }
+
+    private static byte[] writeV2(List<Notification> notifications, boolean encode, int blockSize) {
+        RecordWriter writer = new RecordWriter();
+        if(encode) {
+            writer.setSampleEncoding(UUID_A, 2);
+            writer.setSampleEncoding(UUID_B, 1);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header(SegmentFormat.VERSION), 0, SegmentFormat.HEADER_SIZE);
+        ByteBuffer block = ByteBuffer.allocate(blockSize * 2);
+        ByteBuffer compressed = ByteBuffer.allocate(SegmentFormat.BLOCK_HEADER_SIZE + blockSize * 2);
+        for(Notification n : notifications) {
+            ByteBuffer encoded = writer.encode(n.address, n.uuid, n.timestamp, n.data);
+            block.put(encoded);
+            if(block.position() >= blockSize) {
+                block.flip();
+                assertTrue(RecordWriter.compress(deflater, block, compressed));
+                out.write(compressed.array(), 0, compressed.limit());
+                block.clear();
+            }
+        }
+        // Leave the tail uncompressed, as a recorder does between blocks
+        out.write(block.array(), 0, block.position());
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readsVersion1() throws IOException {
+        List<Notification> notifications = sensorStream(500);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header((short) 1), 0, SegmentFormat.HEADER_SIZE);
+        writeV1(out, notifications);
+        // A small read buffer makes records straddle refills
+        try(SegmentReader reader = reader(out.toByteArray(), 64)) {
+            assertRead(notifications, reader);
+        }
+    }
+
+    @Test
+    public void roundTripsVersion2Raw() throws IOException {
+        List<Notification> notifications = sensorStream(500);
+        try(SegmentReader reader = reader(writeV2(notifications, false, 1024), 64)) {
+            assertRead(notifications, reader);
+        }
+    }
+
+    @Test
+    public void roundTripsVersion2Encoded() throws IOException {
+        List<Notification> notifications = sensorStream(2000);
+        byte[] segment = writeV2(notifications, true, 2048);
+        try(SegmentReader reader = reader(segment, 128)) {
+            assertRead(notifications, reader);
+            assertTrue(reader.getStats().getDecodeThroughput() > 0);
+        }
+    }
+
+    @Test
+    public void roundTripsAfterReset() throws IOException {
+        // Streams are redefined after a reset, as at a block or segment boundary
+        List<Notification> notifications = sensorStream(10);
+        RecordWriter writer = new RecordWriter();
+        writer.setSampleEncoding(UUID_A, 4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header(SegmentFormat.VERSION), 0, SegmentFormat.HEADER_SIZE);
+        for(Notification n : notifications) {
+            ByteBuffer encoded = writer.encode(n.address, n.uuid, n.timestamp, n.data);
+            out.write(encoded.array(), 0, encoded.limit());
+            writer.reset();
+        }
+        try(SegmentReader reader = reader(out.toByteArray(), 1024)) {
+            assertRead(notifications, reader);
+        }
+    }
+
+    @Test
+    public void ignoresTruncatedFinalRecord() throws IOException {
+        List<Notification> notifications = sensorStream(20);
+        byte[] segment = writeV2(notifications, true, 1 << 20);
+        try(SegmentReader reader = reader(Arrays.copyOf(segment, segment.length - 3), 1024)) {
+            assertRead(notifications.subList(0, 19), reader);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnsupportedVersion() throws IOException {
+        reader(header((short) (SegmentFormat.VERSION + 1)), 1024);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUndefinedStream() throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(SegmentFormat.DATA_HEADER_SIZE);
+        record.put(SegmentFormat.RECORD_DATA);
+        record.putShort((short) 3);
+        record.putLong(0);
+        record.putInt(0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header(SegmentFormat.VERSION), 0, SegmentFormat.HEADER_SIZE);
+        out.write(record.array(), 0, record.position());
+        try(SegmentReader reader = reader(out.toByteArray(), 1024)) {
+            reader.next();
+        }
+    }
+}